@@ -0,0 +1,413 @@
+package com.orangeom.poissonimage;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Small HTTP server on localhost that blends images for other tools.
+ *
+ * POST /blend?x=..&y=..&border=x,y;x,y;...[&mixed=true][&adaptive=false][&target=path][&source=path]
+ *
+ * The border points are given in source coordinates and the source is placed at (x, y) on the target.
+ * Images given by path are read from disk, the target through a cache and the source only around the border.
+ * Images that are not given by path are posted in the body, target first, each as a 4 byte big endian
+ * length followed by the encoded image. The response is the blended target as PNG.
+ *
+ * Bodies are limited to 256 MB and images to 32 megapixels, checked from their headers before they are decoded.
+ * Both are answered with 413 beyond that. Border points are clipped to the source.
+ *
+ * GET /stats reports request counters and cache statistics.
+ *
+ * Connections are handled on virtual threads when the runtime has them, and on a cached pool otherwise.
+ * Blends run on a fixed pool of platform threads. Requests beyond the pool and its queue are turned away
+ * with 503 before their bodies are read.
+ */
+public class BlendServer
+{
+    private static final int PNG_COMPRESSION_LEVEL = 1;
+    private static final long MAX_BODY_BYTES = 256L << 20;
+    // The target also gets a mask of the same size, so the pixel count bounds the heap a request takes
+    private static final long MAX_IMAGE_PIXELS = 32L << 20;
+
+    private final HttpServer m_server;
+    private final ExecutorService m_connectionExecutor;
+    private final ThreadPoolExecutor m_solveExecutor;
+    private final Semaphore m_admission;
+    private final ImageCache m_cache;
+
+    private final AtomicLong m_served = new AtomicLong();
+    private final AtomicLong m_rejected = new AtomicLong();
+    private final AtomicLong m_failed = new AtomicLong();
+
+    public BlendServer(int port, int solveThreads, int queueCapacity, long cacheBytes) throws IOException
+    {
+        m_server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        m_connectionExecutor = newConnectionExecutor();
+        m_solveExecutor = new ThreadPoolExecutor(solveThreads, solveThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)));
+        m_admission = new Semaphore(solveThreads + queueCapacity);
+        m_cache = new ImageCache(cacheBytes);
+
+        m_server.setExecutor(m_connectionExecutor);
+        m_server.createContext("/blend", this::handleBlend);
+        m_server.createContext("/stats", this::handleStats);
+    }
+
+    // Virtual threads need Java 21, so they are looked up at runtime to keep building for older targets
+    private static ExecutorService newConnectionExecutor()
+    {
+        try
+        {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    public void start()
+    {
+        m_server.start();
+    }
+
+    public void stop()
+    {
+        m_server.stop(0);
+        m_solveExecutor.shutdown();
+        m_connectionExecutor.shutdown();
+    }
+
+    public int getPort()
+    {
+        return m_server.getAddress().getPort();
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException
+    {
+        Map<String, String> params = new HashMap<>();
+        if (query == null)
+        {
+            return params;
+        }
+        for (String pair : query.split("&"))
+        {
+            int eq = pair.indexOf('=');
+            if (eq > 0)
+            {
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                        URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    private static int getInt(Map<String, String> params, String name)
+    {
+        String value = params.get(name);
+        if (value == null)
+        {
+            throw new IllegalArgumentException("Missing parameter: " + name);
+        }
+        return Integer.parseInt(value.trim());
+    }
+
+    private static ArrayList<Point2> parseBorder(String border)
+    {
+        if (border == null)
+        {
+            throw new IllegalArgumentException("Missing parameter: border");
+        }
+        ArrayList<Point2> points = new ArrayList<>();
+        for (String point : border.split(";"))
+        {
+            String[] xy = point.split(",");
+            if (xy.length != 2)
+            {
+                throw new IllegalArgumentException("Invalid border point: " + point);
+            }
+            points.add(new Point2(Integer.parseInt(xy[0].trim()), Integer.parseInt(xy[1].trim())));
+        }
+        if (points.size() < 3)
+        {
+            throw new IllegalArgumentException("Border needs at least 3 points");
+        }
+        return points;
+    }
+
+    // Answered with 413 rather than 400
+    private static class TooLargeException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        TooLargeException(String message)
+        {
+            super(message);
+        }
+    }
+
+    private static void checkSize(String name, int width, int height) throws TooLargeException
+    {
+        if ((long) width * height > MAX_IMAGE_PIXELS)
+        {
+            throw new TooLargeException(name + " is " + width + "x" + height + ", larger than "
+                    + (MAX_IMAGE_PIXELS >> 20) + " megapixels");
+        }
+    }
+
+    private static File getImageFile(Map<String, String> params, String name)
+    {
+        File file = new File(params.get(name));
+        if (!file.isFile())
+        {
+            throw new IllegalArgumentException("No such " + name + " image: " + file);
+        }
+        return file;
+    }
+
+    private static BufferedImage readPostedImage(DataInputStream in, String name) throws IOException
+    {
+        // The length comes from the client, so it is checked against what was actually posted
+        if (in.available() < 4)
+        {
+            throw new IOException("Missing posted " + name + " image");
+        }
+        int length = in.readInt();
+        if (length <= 0 || length > in.available())
+        {
+            throw new IOException("Invalid " + name + " image length: " + length);
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        Dimension size = ImageRegionIO.readSize(data);
+        checkSize("Posted " + name + " image", size.width, size.height);
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+        if (image == null)
+        {
+            throw new IOException("Unsupported image format");
+        }
+        return image;
+    }
+
+    // Like the panel, keep the border on the source so that every inside pixel has a source color
+    private static void clipBorder(ArrayList<Point2> border, int w, int h)
+    {
+        for (Point2 p : border)
+        {
+            p.x = Math.max(0, Math.min(w - 1, p.x));
+            p.y = Math.max(0, Math.min(h - 1, p.y));
+        }
+    }
+
+    private byte[] blend(Map<String, String> params, byte[] body) throws IOException
+    {
+        int imageX = getInt(params, "x");
+        int imageY = getInt(params, "y");
+        ArrayList<Point2> border = parseBorder(params.get("border"));
+        boolean mixedGradients = !"false".equals(params.get("mixed"));
+        boolean adaptive = "true".equals(params.get("adaptive"));
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        BufferedImage targetImage;
+        if (params.containsKey("target"))
+        {
+            File file = getImageFile(params, "target");
+            Dimension size = ImageRegionIO.readSize(file);
+            checkSize("Target " + file, size.width, size.height);
+            targetImage = ImageRegionIO.copyImage(m_cache.read(file));
+        }
+        else
+        {
+            targetImage = readPostedImage(in, "target");
+        }
+
+        BufferedImage sourceImage;
+        if (params.containsKey("source"))
+        {
+            // Only the part of the source inside the border is ever read
+            File file = getImageFile(params, "source");
+            Rectangle region = ImageRegionIO.getBorderBounds(border);
+            region.grow(1, 1);
+            Dimension size = ImageRegionIO.readSize(file);
+            region = region.intersection(new Rectangle(0, 0, size.width, size.height));
+            if (region.isEmpty())
+            {
+                throw new IllegalArgumentException("Border lies outside the source image");
+            }
+            checkSize("Source region of " + file, region.width, region.height);
+            sourceImage = ImageRegionIO.readRegion(file, region);
+            for (Point2 p : border)
+            {
+                p.add(-region.x, -region.y);
+            }
+            imageX += region.x;
+            imageY += region.y;
+        }
+        else
+        {
+            sourceImage = readPostedImage(in, "source");
+        }
+        clipBorder(border, sourceImage.getWidth(), sourceImage.getHeight());
+
+        for (Point2 p : border)
+        {
+            p.add(imageX, imageY);
+        }
+        int[][] mask = new int[targetImage.getWidth()][targetImage.getHeight()];
+        CutRegion region = CutRegion.cut(sourceImage, border, mask, imageX, imageY);
+
+        // Already on a pool thread, so the components of one request are solved in turn
+        if (adaptive)
+        {
+            QuadtreeSolver.blend(targetImage, region, mixedGradients, 1);
+        }
+        else
+        {
+            Solver.solveAll(targetImage, Collections.singletonList(region), mixedGradients, 1);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageRegionIO.writePng(targetImage, out, PNG_COMPRESSION_LEVEL);
+        return out.toByteArray();
+    }
+
+    // Returns null if the body is longer than MAX_BODY_BYTES
+    private static byte[] readBody(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1 << 16];
+        int n;
+        while ((n = in.read(buffer)) > 0)
+        {
+            if (out.size() + n > MAX_BODY_BYTES)
+            {
+                return null;
+            }
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] data) throws IOException
+    {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, data.length);
+        try (OutputStream out = exchange.getResponseBody())
+        {
+            out.write(data);
+        }
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String text) throws IOException
+    {
+        send(exchange, status, "text/plain; charset=utf-8", (text + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void handleBlend(HttpExchange exchange) throws IOException
+    {
+        try
+        {
+            if (!"POST".equals(exchange.getRequestMethod()))
+            {
+                sendText(exchange, 405, "Use POST");
+                return;
+            }
+
+            if (!m_admission.tryAcquire())
+            {
+                m_rejected.incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                sendText(exchange, 503, "Server busy");
+                return;
+            }
+
+            byte[] result;
+            try
+            {
+                Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+                String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+                byte[] body = contentLength != null && Long.parseLong(contentLength.trim()) > MAX_BODY_BYTES
+                        ? null : readBody(exchange.getRequestBody());
+                if (body == null)
+                {
+                    m_failed.incrementAndGet();
+                    sendText(exchange, 413, "Request body larger than " + (MAX_BODY_BYTES >> 20) + " MB");
+                    return;
+                }
+                result = m_solveExecutor.submit(() -> blend(params, body)).get();
+            }
+            finally
+            {
+                m_admission.release();
+            }
+
+            m_served.incrementAndGet();
+            send(exchange, 200, "image/png", result);
+        }
+        catch (ExecutionException e)
+        {
+            m_failed.incrementAndGet();
+            Throwable cause = e.getCause();
+            boolean badRequest = cause instanceof IllegalArgumentException || cause instanceof IOException;
+            int status = cause instanceof TooLargeException ? 413 : badRequest ? 400 : 500;
+            sendText(exchange, status, cause.getMessage() != null ? cause.getMessage() : cause.toString());
+        }
+        catch (IllegalArgumentException e)
+        {
+            m_failed.incrementAndGet();
+            sendText(exchange, 400, e.getMessage());
+        }
+        catch (InterruptedException | RejectedExecutionException e)
+        {
+            m_failed.incrementAndGet();
+            sendText(exchange, 503, "Server busy");
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+    private void handleStats(HttpExchange exchange) throws IOException
+    {
+        try
+        {
+            sendText(exchange, 200, "Served: " + m_served.get() + "\n"
+                    + "Rejected: " + m_rejected.get() + "\n"
+                    + "Failed: " + m_failed.get() + "\n"
+                    + "Active: " + m_solveExecutor.getActiveCount() + "\n"
+                    + "Queued: " + m_solveExecutor.getQueue().size() + "\n"
+                    + m_cache.getStats());
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int queue = args.length > 2 ? Integer.parseInt(args[2]) : threads * 2;
+
+        BlendServer server = new BlendServer(port, threads, queue, 512L << 20);
+        server.start();
+        System.out.println("Listening on http://localhost:" + server.getPort());
+    }
+}
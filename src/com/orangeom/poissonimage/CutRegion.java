@@ -0,0 +1,166 @@
+package com.orangeom.poissonimage;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Stack;
+
+/**
+ * A cut source placed on the target: the cut image, its inside points relative to the cut image,
+ * the target-sized mask that indexes those points, and the placement offset.
+ */
+public class CutRegion
+{
+    private static final int MASK_INSIDE = -1;
+    private static final int MASK_BORDER = -2;
+    private static final int MASK_OUTSIDE = -3;
+
+    public BufferedImage cutImage;
+    public ArrayList<Point2> cutPoints;
+    public int[][] mask;
+    public int imageX;
+    public int imageY;
+
+    public CutRegion(BufferedImage _cutImage, ArrayList<Point2> _cutPoints, int[][] _mask, int _imageX, int _imageY)
+    {
+        cutImage = _cutImage;
+        cutPoints = _cutPoints;
+        mask = _mask;
+        imageX = _imageX;
+        imageY = _imageY;
+    }
+
+    private static Point2 clipPointToBox(int x0, int y0, int w, int h, int x, int y)
+    {
+        int px = x;
+        int py = y;
+
+        px = Math.max(x0, px);
+        px = Math.min(x0 + w, px);
+        py = Math.max(y0, py);
+        py = Math.min(y0 + h, py);
+
+        return new Point2(px, py);
+    }
+
+    /**
+     * Cuts the source image along a closed border given in target coordinates, with the source placed at
+     * (imageX, imageY). The target-sized mask is filled in place and each inside pixel is given its index
+     * in the returned cut points.
+     */
+    public static CutRegion cut(BufferedImage sourceImage, ArrayList<Point2> borderPoints, int[][] mask,
+                                int imageX, int imageY)
+    {
+        int maskW = mask.length;
+        int maskH = mask[0].length;
+        for (int x = 0; x < maskW; x++)
+        {
+            for (int y = 0; y < maskH; y++)
+            {
+                mask[x][y] = MASK_INSIDE;
+            }
+        }
+
+        // Fill in pixels of border
+        int len = borderPoints.size();
+        for (int i = 0; i < len; i++)
+        {
+            Point2 start = borderPoints.get(i);
+            start = clipPointToBox(0, 0, maskW - 1, maskH - 1, start.x, start.y);
+            Point2 end = borderPoints.get((i + 1) % len);
+            end = clipPointToBox(0, 0, maskW - 1, maskH - 1, end.x, end.y);
+            Point2 d = end.sub(start);
+
+            double r = 1.0 / (double) Math.abs(d.x);
+            int dir = d.x > 0 ? 1 : -1;
+            for (int x = 0; x < Math.abs(d.x); x++)
+            {
+
+                int h = (int) Math.round(r * (double)x * (double) d.y);
+                mask[start.x + x * dir][start.y + h] = MASK_BORDER;
+            }
+
+            r = 1.0 / (double) Math.abs(d.y);
+            dir = d.y > 0 ? 1 : -1;
+
+            for (int y = 0; y < Math.abs(d.y); y++)
+            {
+                int w = (int) Math.round(r * (double)y * (double) d.x);
+                mask[start.x + w][start.y + y * dir] = MASK_BORDER;
+            }
+        }
+
+        // Find an outside point
+        Stack<Point2> stack = new Stack<>();
+        outer:
+        for (int y = 0; y < maskH; y++)
+        {
+            for (int x = 0; x < maskW; x++)
+            {
+                if (mask[x][y] == MASK_INSIDE)
+                {
+                    stack.push(new Point2(x, y));
+                    break outer;
+                }
+            }
+        }
+
+        // Fill all outside points
+        while (!stack.empty())
+        {
+            Point2 p = stack.pop();
+            if (p.x < 0 || p.x > maskW - 1 || p.y < 0 || p.y > maskH - 1)
+            {
+                continue;
+            }
+            if (mask[p.x][p.y] == MASK_OUTSIDE)
+            {
+                continue;
+            }
+            if (mask[p.x][p.y] == MASK_BORDER)
+            {
+                continue;
+            }
+            mask[p.x][p.y] = MASK_OUTSIDE;
+            stack.push(new Point2(p.x + 1, p.y));
+            stack.push(new Point2(p.x - 1, p.y));
+            stack.push(new Point2(p.x, p.y + 1));
+            stack.push(new Point2(p.x, p.y - 1));
+        }
+
+        ArrayList<Point2> cutPoints = new ArrayList<>();
+        for (int y = 0; y < maskH; y++)
+        {
+            for (int x = 0; x < maskW; x++)
+            {
+                if (mask[x][y] == MASK_INSIDE)
+                {
+                    cutPoints.add(new Point2(x - imageX, y - imageY));
+                    mask[x][y] = cutPoints.size() - 1;
+                }
+            }
+        }
+
+        int imageW = sourceImage.getWidth();
+        int imageH = sourceImage.getHeight();
+        BufferedImage cutImage = new BufferedImage(imageW, imageH, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < imageH; y++)
+        {
+            for (int x = 0; x < imageW; x++)
+            {
+                int rx = imageX + x;
+                int ry = imageY + y;
+
+                if (!(rx < 0 || rx >= maskW || ry < 0 || ry >= maskH) && mask[rx][ry] > MASK_INSIDE)
+                {
+                    cutImage.setRGB(x, y, 0xFF000000 | sourceImage.getRGB(x, y));
+                }
+                else
+                {
+                    cutImage.setRGB(x, y, 0x00FFFFFF);
+                }
+            }
+        }
+
+        return new CutRegion(cutImage, cutPoints, mask, imageX, imageY);
+    }
+}
@@ -0,0 +1,460 @@
+package com.orangeom.poissonimage;
+
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Solves a cut with restricted additive Schwarz across worker processes. The rows of the cut are split into
+ * horizontal strips of about the same number of unknowns, and each strip is grown by a few rows of overlap and
+ * one more row of halo. Every {@link DomainWorker} is sent only the window of the target and cut image around
+ * its strip and assembles its own subdomain from it, the same way {@link Solver} assembles a whole cut.
+ *
+ * Each outer iteration the coordinator sends every worker the rows it overlaps from its neighbors, and the
+ * worker relaxes its subdomain and returns the rows next to its own strip edges, together with the squared
+ * residual of the unknowns it owns. The coordinator only keeps those edge rows and adds up the residuals, so
+ * its heap does not grow with the cut. The owned values come back once, when the solve has converged.
+ */
+public class DomainSolver
+{
+    private static final int MAX_OUTER_ITERATIONS = 100000;
+    private static final int ACCEPT_TIMEOUT_MS = 30000;
+    private static final int DEFAULT_OVERLAP = 8;
+    private static final int DEFAULT_SWEEPS = 10;
+
+    private BufferedImage m_targetImage;
+    private CutRegion m_region;
+    private boolean m_mixedGradients;
+    private int m_workers;
+    private int m_overlap;
+    private int m_sweeps;
+
+    private int m_n;
+    // Inside points per target row, and the rows and columns that hold any
+    private int[] m_rowCount;
+    private int m_firstRow;
+    private int m_lastRow;
+    private int m_firstColumn;
+    private int m_lastColumn;
+    // Worker w owns the target rows [m_rowStart[w], m_rowStart[w + 1])
+    private int[] m_rowStart;
+    // Latest values of the rows next to strip edges, by target row; other rows stay null
+    private double[][] m_edgeRows;
+
+    private int m_iterations;
+    private double m_error;
+    private double m_setupTime;
+    private double m_time;
+    private long m_bytesExchanged;
+
+    public DomainSolver(BufferedImage targetImage, CutRegion region, boolean mixedGradients, int workers)
+    {
+        this(targetImage, region, mixedGradients, workers, DEFAULT_OVERLAP, DEFAULT_SWEEPS);
+    }
+
+    public DomainSolver(BufferedImage targetImage, CutRegion region, boolean mixedGradients, int workers,
+                        int overlap, int sweeps)
+    {
+        m_targetImage = targetImage;
+        m_region = region;
+        m_mixedGradients = mixedGradients;
+        m_overlap = Math.max(0, overlap);
+        m_sweeps = Math.max(1, sweeps);
+        m_n = region.cutPoints.size();
+        partition(Math.max(1, workers));
+    }
+
+    private void partition(int workers)
+    {
+        m_rowCount = new int[m_targetImage.getHeight()];
+        m_firstRow = Integer.MAX_VALUE;
+        m_lastRow = -1;
+        m_firstColumn = Integer.MAX_VALUE;
+        m_lastColumn = -1;
+        for (Point2 p : m_region.cutPoints)
+        {
+            int x = p.x + m_region.imageX;
+            int y = p.y + m_region.imageY;
+            m_rowCount[y]++;
+            m_firstRow = Math.min(m_firstRow, y);
+            m_lastRow = Math.max(m_lastRow, y);
+            m_firstColumn = Math.min(m_firstColumn, x);
+            m_lastColumn = Math.max(m_lastColumn, x);
+        }
+        if (m_n == 0)
+        {
+            m_workers = 0;
+            return;
+        }
+
+        // Every strip gets at least one row, and a new strip starts once the earlier ones hold their share
+        m_workers = Math.min(workers, m_lastRow - m_firstRow + 1);
+        m_rowStart = new int[m_workers + 1];
+        m_rowStart[0] = m_firstRow;
+        m_rowStart[m_workers] = m_lastRow + 1;
+        int w = 1;
+        long count = 0;
+        for (int y = m_firstRow; y < m_lastRow && w < m_workers; y++)
+        {
+            count += m_rowCount[y];
+            if (count * m_workers >= (long) m_n * w || m_lastRow - y == m_workers - w)
+            {
+                m_rowStart[w++] = y + 1;
+            }
+        }
+
+        m_edgeRows = new double[m_targetImage.getHeight()][];
+        for (w = 0; w < m_workers; w++)
+        {
+            for (int y = m_rowStart[w]; y < m_rowStart[w + 1]; y++)
+            {
+                if (isEdgeRow(w, y))
+                {
+                    m_edgeRows[y] = new double[m_rowCount[y] * 3];
+                }
+            }
+        }
+    }
+
+    // Rows of a strip that the overlap or halo of a neighboring strip reaches
+    private boolean isEdgeRow(int w, int y)
+    {
+        return y < m_rowStart[w] + m_overlap + 1 || y >= m_rowStart[w + 1] - m_overlap - 1;
+    }
+
+    private int getOverlapStart(int w)
+    {
+        return Math.max(m_firstRow, m_rowStart[w] - m_overlap);
+    }
+
+    private int getOverlapEnd(int w)
+    {
+        return Math.min(m_lastRow + 1, m_rowStart[w + 1] + m_overlap);
+    }
+
+    private int getHaloStart(int w)
+    {
+        return Math.max(m_firstRow, getOverlapStart(w) - 1);
+    }
+
+    private int getHaloEnd(int w)
+    {
+        return Math.min(m_lastRow + 1, getOverlapEnd(w) + 1);
+    }
+
+    private int getCutRGB(int x, int y)
+    {
+        int cx = x - m_region.imageX;
+        int cy = y - m_region.imageY;
+        if (cx < 0 || cx >= m_region.cutImage.getWidth() || cy < 0 || cy >= m_region.cutImage.getHeight())
+        {
+            return 0;
+        }
+        return m_region.cutImage.getRGB(cx, cy);
+    }
+
+    /**
+     * Sends a worker the window of the target and cut image that its subdomain and its neighbors lie in, and
+     * where its owned, overlap and halo rows are within that window. Inside pixels are the opaque ones of the cut.
+     */
+    private void sendSetup(DataOutputStream out, int w) throws IOException
+    {
+        // Two more rows and columns keep the window edge, which the assembly treats as the target edge, off
+        // the neighbors of the subdomain unless it really is the target edge
+        int x0 = Math.max(0, m_firstColumn - 2);
+        int x1 = Math.min(m_targetImage.getWidth(), m_lastColumn + 3);
+        int y0 = Math.max(0, getOverlapStart(w) - 2);
+        int y1 = Math.min(m_targetImage.getHeight(), getOverlapEnd(w) + 2);
+
+        out.writeBoolean(m_mixedGradients);
+        out.writeInt(x1 - x0);
+        out.writeInt(y1 - y0);
+        out.writeInt(m_rowStart[w] - y0);
+        out.writeInt(m_rowStart[w + 1] - y0);
+        out.writeInt(getOverlapStart(w) - y0);
+        out.writeInt(getOverlapEnd(w) - y0);
+        out.writeInt(getHaloStart(w) - y0);
+        out.writeInt(getHaloEnd(w) - y0);
+        out.writeInt(m_overlap + 1);
+        for (int y = y0; y < y1; y++)
+        {
+            for (int x = x0; x < x1; x++)
+            {
+                out.writeInt(m_targetImage.getRGB(x, y));
+                out.writeInt(getCutRGB(x, y));
+            }
+        }
+        out.flush();
+        m_bytesExchanged += 8L * (x1 - x0) * (y1 - y0);
+    }
+
+    private void writeRows(DataOutputStream out, int start, int end) throws IOException
+    {
+        for (int y = start; y < end; y++)
+        {
+            for (double v : m_edgeRows[y])
+            {
+                out.writeDouble(v);
+            }
+            m_bytesExchanged += m_edgeRows[y].length * 8L;
+        }
+    }
+
+    // Overlap rows and then halo rows, each from top to bottom, which is the order the worker keeps them in
+    private void sendIterate(DataOutputStream out, int w) throws IOException
+    {
+        out.writeByte(DomainWorker.CMD_ITERATE);
+        out.writeInt(m_sweeps);
+        writeRows(out, getOverlapStart(w), m_rowStart[w]);
+        writeRows(out, m_rowStart[w + 1], getOverlapEnd(w));
+        writeRows(out, getHaloStart(w), getOverlapStart(w));
+        writeRows(out, getOverlapEnd(w), getHaloEnd(w));
+        out.flush();
+    }
+
+    // Squared residual of the owned unknowns, then the owned edge rows after the sweeps
+    private double readIterate(DataInputStream in, int w) throws IOException
+    {
+        double residual = in.readDouble();
+        for (int y = m_rowStart[w]; y < m_rowStart[w + 1]; y++)
+        {
+            if (isEdgeRow(w, y))
+            {
+                double[] row = m_edgeRows[y];
+                for (int k = 0; k < row.length; k++)
+                {
+                    row[k] = in.readDouble();
+                }
+                m_bytesExchanged += row.length * 8L;
+            }
+        }
+        return residual;
+    }
+
+    // The owned pixels as blended colors, in the scan order the setup window gave them
+    private void readResult(DataInputStream in, int w) throws IOException
+    {
+        for (int y = m_rowStart[w]; y < m_rowStart[w + 1]; y++)
+        {
+            if (m_rowCount[y] == 0)
+            {
+                continue;
+            }
+            for (int x = m_firstColumn; x <= m_lastColumn; x++)
+            {
+                if ((getCutRGB(x, y) >>> 24) != 0)
+                {
+                    m_targetImage.setRGB(x, y, in.readInt());
+                }
+            }
+            m_bytesExchanged += 4L * m_rowCount[y];
+        }
+    }
+
+    private Process startWorker(int port) throws IOException
+    {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                DomainWorker.class.getName(), String.valueOf(port));
+        builder.inheritIO();
+        return builder.start();
+    }
+
+    /**
+     * Solves the cut and writes the result into the target.
+     */
+    public void run() throws IOException
+    {
+        m_iterations = 0;
+        m_error = 0.0;
+        m_setupTime = 0.0;
+        m_time = 0.0;
+        m_bytesExchanged = 0;
+        if (m_workers == 0)
+        {
+            return;
+        }
+
+        long setupStart = System.nanoTime();
+        ArrayList<Process> processes = new ArrayList<>();
+        Socket[] sockets = new Socket[m_workers];
+        DataInputStream[] ins = new DataInputStream[m_workers];
+        DataOutputStream[] outs = new DataOutputStream[m_workers];
+
+        try (ServerSocket server = new ServerSocket(0, m_workers, InetAddress.getLoopbackAddress()))
+        {
+            server.setSoTimeout(ACCEPT_TIMEOUT_MS);
+            for (int w = 0; w < m_workers; w++)
+            {
+                processes.add(startWorker(server.getLocalPort()));
+            }
+
+            // Workers are told their strip in the order they connect
+            for (int w = 0; w < m_workers; w++)
+            {
+                sockets[w] = server.accept();
+                sockets[w].setTcpNoDelay(true);
+                ins[w] = new DataInputStream(new BufferedInputStream(sockets[w].getInputStream(), 1 << 16));
+                outs[w] = new DataOutputStream(new BufferedOutputStream(sockets[w].getOutputStream(), 1 << 16));
+                sendSetup(outs[w], w);
+            }
+            for (double[] row : m_edgeRows)
+            {
+                if (row != null)
+                {
+                    Arrays.fill(row, 0.0);
+                }
+            }
+
+            // Process launch and assembly are timed apart from the solve so that scaling shows the iteration
+            long start = System.nanoTime();
+            m_setupTime = (start - setupStart) / 1e9;
+            int i = 0;
+            double error = Double.MAX_VALUE;
+            while (error > 1.0 && i < MAX_OUTER_ITERATIONS)
+            {
+                // Send every worker its fresh values first so that the subdomains relax concurrently
+                for (int w = 0; w < m_workers; w++)
+                {
+                    sendIterate(outs[w], w);
+                }
+                double residual = 0.0;
+                for (int w = 0; w < m_workers; w++)
+                {
+                    residual += readIterate(ins[w], w);
+                }
+
+                // The residual is that of the values the round started from
+                i++;
+                error = Math.sqrt(residual);
+            }
+            m_iterations = i;
+            m_error = error;
+
+            for (int w = 0; w < m_workers; w++)
+            {
+                outs[w].writeByte(DomainWorker.CMD_STOP);
+                outs[w].flush();
+            }
+            for (int w = 0; w < m_workers; w++)
+            {
+                readResult(ins[w], w);
+            }
+            m_time = (System.nanoTime() - start) / 1e9;
+        }
+        finally
+        {
+            for (Socket socket : sockets)
+            {
+                if (socket != null)
+                {
+                    socket.close();
+                }
+            }
+            for (Process process : processes)
+            {
+                try
+                {
+                    if (!process.waitFor(5, TimeUnit.SECONDS))
+                    {
+                        process.destroyForcibly();
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    process.destroyForcibly();
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        if (m_iterations >= MAX_OUTER_ITERATIONS)
+        {
+            System.out.println("Convergence error: " + m_error);
+        }
+        System.out.println("Setup time: " + m_setupTime + "s");
+        System.out.println("Solve time: " + m_time + "s");
+        System.out.println("Pixels blended: " + m_n);
+        System.out.println("Workers: " + m_workers);
+        System.out.println("Outer iterations: " + m_iterations);
+        System.out.println("Exchanged: " + (m_bytesExchanged >> 20) + " MB");
+    }
+
+    public int getIterations()
+    {
+        return m_iterations;
+    }
+
+    public int getWorkers()
+    {
+        return m_workers;
+    }
+
+    public double getSetupTime()
+    {
+        return m_setupTime;
+    }
+
+    public double getTime()
+    {
+        return m_time;
+    }
+
+    private static BufferedImage pattern(int w, int h, double frequency)
+    {
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < h; y++)
+        {
+            for (int x = 0; x < w; x++)
+            {
+                int v = (int) (128 + 60 * Math.sin(x * frequency) + 40 * Math.cos(y * frequency * 0.6));
+                image.setRGB(x, y, v << 16 | (255 - v) << 8 | (x ^ y) & 0xFF);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Scaling benchmark on a synthetic square cut: size [maxWorkers] [overlap] [sweeps]. Speedup compares the
+     * solve times, without process launch and setup, which are reported on their own.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+        int maxWorkers = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int overlap = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_OVERLAP;
+        int sweeps = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_SWEEPS;
+
+        BufferedImage target = pattern(size + 64, size + 64, 0.05);
+        BufferedImage source = pattern(size, size, 0.11);
+        ArrayList<Point2> border = new ArrayList<>(Arrays.asList(new Point2(32, 32), new Point2(32 + size - 1, 32),
+                new Point2(32 + size - 1, 32 + size - 1), new Point2(32, 32 + size - 1)));
+        int[][] mask = new int[target.getWidth()][target.getHeight()];
+        CutRegion region = CutRegion.cut(source, border, mask, 32, 32);
+
+        double baseTime = 0.0;
+        StringBuilder report = new StringBuilder("Workers\tIterations\tSetup\tSolve\tSpeedup\tEfficiency\n");
+        for (int workers = 1; workers <= maxWorkers; workers *= 2)
+        {
+            DomainSolver domainSolver = new DomainSolver(ImageRegionIO.copyImage(target), region, false,
+                    workers, overlap, sweeps);
+            domainSolver.run();
+
+            double time = domainSolver.getTime();
+            if (workers == 1)
+            {
+                baseTime = time;
+            }
+            double speedup = baseTime / time;
+            report.append(String.format("%d\t%d\t%.3fs\t%.3fs\t%.2f\t%.0f%%%n", domainSolver.getWorkers(),
+                    domainSolver.getIterations(), domainSolver.getSetupTime(), time, speedup,
+                    100 * speedup / domainSolver.getWorkers()));
+        }
+        System.out.print(report);
+    }
+}
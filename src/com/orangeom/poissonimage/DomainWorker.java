@@ -0,0 +1,233 @@
+package com.orangeom.poissonimage;
+
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Worker process for {@link DomainSolver}. Connects to the coordinator on localhost, receives the window of the
+ * target and cut image around one strip of the cut, and assembles that subdomain with a {@link Solver}. It then
+ * relaxes the subdomain each time it is sent fresh values for the rows it does not own.
+ *
+ * The local unknowns are ordered owned first, then the overlap, then the halo of outside neighbors, each from
+ * top to bottom. The halo is held fixed during a round of sweeps.
+ */
+public class DomainWorker
+{
+    static final byte CMD_ITERATE = 1;
+    static final byte CMD_STOP = 2;
+
+    private static final int MASK_BORDER = -2;
+
+    private BufferedImage m_targetImage;
+    private ArrayList<Point2> m_points;
+    private Solver m_solver;
+    private int m_owned;
+    private int m_m;
+    private int m_n;
+    private int[] m_D;
+    private int[][] m_R;
+    private double[][] m_b;
+    private double[][] m_x;
+
+    // Window rows of the strip and how many rows next to its edges the neighbors read
+    private int m_ownedStart;
+    private int m_ownedEnd;
+    private int m_edgeRows;
+    // Local index of the first unknown of each window row, and the unknowns in it
+    private int[] m_rowFirst;
+    private int[] m_rowCount;
+
+    private void addRows(ArrayList<Point2> points, BufferedImage cutImage, int[][] mask, int start, int end)
+    {
+        for (int y = start; y < end; y++)
+        {
+            m_rowFirst[y] = points.size();
+            for (int x = 0; x < cutImage.getWidth(); x++)
+            {
+                if ((cutImage.getRGB(x, y) >>> 24) != 0)
+                {
+                    mask[x][y] = points.size();
+                    points.add(new Point2(x, y));
+                }
+            }
+            m_rowCount[y] = points.size() - m_rowFirst[y];
+        }
+    }
+
+    private void readSetup(DataInputStream in) throws IOException
+    {
+        boolean mixedGradients = in.readBoolean();
+        int width = in.readInt();
+        int height = in.readInt();
+        m_ownedStart = in.readInt();
+        m_ownedEnd = in.readInt();
+        int overlapStart = in.readInt();
+        int overlapEnd = in.readInt();
+        int haloStart = in.readInt();
+        int haloEnd = in.readInt();
+        m_edgeRows = in.readInt();
+
+        m_targetImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        BufferedImage cutImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                m_targetImage.setRGB(x, y, in.readInt());
+                cutImage.setRGB(x, y, in.readInt());
+            }
+        }
+
+        // Inside pixels beyond the halo are only ever neighbors of the halo, whose equations are not used
+        int[][] mask = new int[width][height];
+        for (int[] column : mask)
+        {
+            Arrays.fill(column, MASK_BORDER);
+        }
+        m_rowFirst = new int[height];
+        m_rowCount = new int[height];
+        m_points = new ArrayList<>();
+        addRows(m_points, cutImage, mask, m_ownedStart, m_ownedEnd);
+        m_owned = m_points.size();
+        addRows(m_points, cutImage, mask, overlapStart, m_ownedStart);
+        addRows(m_points, cutImage, mask, m_ownedEnd, overlapEnd);
+        m_m = m_points.size();
+        addRows(m_points, cutImage, mask, haloStart, overlapStart);
+        addRows(m_points, cutImage, mask, overlapEnd, haloEnd);
+        m_n = m_points.size();
+
+        m_solver = new Solver(m_targetImage, cutImage, m_points, mask, 0, 0, mixedGradients);
+        m_D = m_solver.getDiagonal();
+        m_R = m_solver.getNeighbors();
+        m_b = m_solver.getRhs();
+        m_x = m_solver.getSolution();
+    }
+
+    private void iterateRelax()
+    {
+        double omega = 1.95;
+        double[] sum = new double[3];
+        for (int i = 0; i < m_m; i++)
+        {
+            sum[0] = m_b[i][0];
+            sum[1] = m_b[i][1];
+            sum[2] = m_b[i][2];
+
+            for (int n = 0; n < 4; n++)
+            {
+                if (m_R[i][n] > -1)
+                {
+                    int idx = m_R[i][n];
+                    sum[0] += m_x[idx][0];
+                    sum[1] += m_x[idx][1];
+                    sum[2] += m_x[idx][2];
+                }
+            }
+
+            for (int k = 0; k < 3; k++)
+            {
+                m_x[i][k] += omega * (sum[k] / m_D[i] - m_x[i][k]);
+            }
+        }
+    }
+
+    // Squared residual of the owned unknowns, the part of the global residual this worker is responsible for
+    private double getOwnedError()
+    {
+        double totalE = 0.0;
+        double[] e = new double[3];
+        for (int i = 0; i < m_owned; i++)
+        {
+            e[0] = m_b[i][0];
+            e[1] = m_b[i][1];
+            e[2] = m_b[i][2];
+
+            for (int j = 0; j < 4; j++)
+            {
+                if (m_R[i][j] > -1)
+                {
+                    int idx = m_R[i][j];
+                    e[0] += m_x[idx][0];
+                    e[1] += m_x[idx][1];
+                    e[2] += m_x[idx][2];
+                }
+            }
+            e[0] -= m_D[i] * m_x[i][0];
+            e[1] -= m_D[i] * m_x[i][1];
+            e[2] -= m_D[i] * m_x[i][2];
+            totalE += e[0] * e[0] + e[1] * e[1] + e[2] * e[2];
+        }
+        return totalE;
+    }
+
+    private void run(DataInputStream in, DataOutputStream out) throws IOException
+    {
+        readSetup(in);
+        while (true)
+        {
+            byte cmd = in.readByte();
+            if (cmd == CMD_STOP)
+            {
+                // Owned pixels go back as blended colors in scan order
+                m_solver.updateTarget();
+                for (int i = 0; i < m_owned; i++)
+                {
+                    Point2 p = m_points.get(i);
+                    out.writeInt(m_targetImage.getRGB(p.x, p.y));
+                }
+                out.flush();
+                return;
+            }
+            if (cmd != CMD_ITERATE)
+            {
+                throw new IOException("Unknown command: " + cmd);
+            }
+
+            int sweeps = in.readInt();
+            for (int i = m_owned; i < m_n; i++)
+            {
+                for (int k = 0; k < 3; k++)
+                {
+                    m_x[i][k] = in.readDouble();
+                }
+            }
+
+            out.writeDouble(getOwnedError());
+            for (int s = 0; s < sweeps; s++)
+            {
+                iterateRelax();
+            }
+
+            for (int y = m_ownedStart; y < m_ownedEnd; y++)
+            {
+                if (y < m_ownedStart + m_edgeRows || y >= m_ownedEnd - m_edgeRows)
+                {
+                    for (int i = m_rowFirst[y]; i < m_rowFirst[y] + m_rowCount[y]; i++)
+                    {
+                        for (int k = 0; k < 3; k++)
+                        {
+                            out.writeDouble(m_x[i][k]);
+                        }
+                    }
+                }
+            }
+            out.flush();
+        }
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        int port = Integer.parseInt(args[0]);
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port))
+        {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+            new DomainWorker().run(in, out);
+        }
+    }
+}
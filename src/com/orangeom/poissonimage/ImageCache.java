@@ -0,0 +1,149 @@
+package com.orangeom.poissonimage;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of decoded images, bounded by an estimate of the memory each entry holds.
+ * Entries are keyed by file path and modification time, so an edited file is decoded again. Cached images
+ * are shared and must not be modified; copy them before blending into them.
+ */
+public class ImageCache
+{
+    private static class Entry
+    {
+        BufferedImage value;
+        long weight;
+
+        Entry(BufferedImage _value, long _weight)
+        {
+            value = _value;
+            weight = _weight;
+        }
+    }
+
+    private final long m_maxBytes;
+    private long m_bytes = 0;
+    private final LinkedHashMap<String, Entry> m_entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long m_hits = 0;
+    private long m_misses = 0;
+    private long m_evictions = 0;
+
+    public ImageCache(long maxBytes)
+    {
+        m_maxBytes = maxBytes;
+    }
+
+    private static String key(File file) throws IOException
+    {
+        return file.getCanonicalPath() + "@" + file.lastModified();
+    }
+
+    private static long weight(BufferedImage image)
+    {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    private synchronized BufferedImage get(String key)
+    {
+        Entry entry = m_entries.get(key);
+        if (entry == null)
+        {
+            m_misses++;
+            return null;
+        }
+        m_hits++;
+        return entry.value;
+    }
+
+    private synchronized void put(String key, BufferedImage value, long weight)
+    {
+        if (weight > m_maxBytes)
+        {
+            return;
+        }
+
+        Entry old = m_entries.put(key, new Entry(value, weight));
+        if (old != null)
+        {
+            m_bytes -= old.weight;
+        }
+        m_bytes += weight;
+
+        Iterator<Map.Entry<String, Entry>> it = m_entries.entrySet().iterator();
+        while (m_bytes > m_maxBytes && it.hasNext())
+        {
+            Map.Entry<String, Entry> eldest = it.next();
+            if (eldest.getKey().equals(key))
+            {
+                continue;
+            }
+            m_bytes -= eldest.getValue().weight;
+            it.remove();
+            m_evictions++;
+        }
+    }
+
+    public BufferedImage read(File file) throws IOException
+    {
+        String key = key(file);
+        BufferedImage image = get(key);
+        if (image == null)
+        {
+            image = ImageIO.read(file);
+            if (image == null)
+            {
+                throw new IOException("Unsupported image format: " + file);
+            }
+            put(key, image, weight(image));
+        }
+        return image;
+    }
+
+    public synchronized void clear()
+    {
+        m_entries.clear();
+        m_bytes = 0;
+    }
+
+    public synchronized long getHits()
+    {
+        return m_hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return m_misses;
+    }
+
+    public synchronized long getEvictions()
+    {
+        return m_evictions;
+    }
+
+    public synchronized long getBytes()
+    {
+        return m_bytes;
+    }
+
+    public long getMaxBytes()
+    {
+        return m_maxBytes;
+    }
+
+    public synchronized String getStats()
+    {
+        long lookups = m_hits + m_misses;
+        double hitRate = lookups == 0 ? 0.0 : (double) m_hits / lookups;
+        return "Image cache: " + m_hits + " hits, " + m_misses + " misses (" + Math.round(hitRate * 100) + "%), "
+                + m_evictions + " evictions, " + (m_bytes >> 20) + "/" + (m_maxBytes >> 20) + " MB";
+    }
+}
@@ -0,0 +1,192 @@
+package com.orangeom.poissonimage;
+
+import javax.imageio.*;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.WritableRaster;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Image reading and writing that only touches what a blend needs: a region of the source around the cut, image
+ * sizes read from the header without decoding, and PNG output streamed at a chosen compression level. The target
+ * is always decoded in full, since the whole composite is what a blend returns.
+ */
+public class ImageRegionIO
+{
+    // https://stackoverflow.com/a/3514297
+    public static BufferedImage copyImage(BufferedImage b)
+    {
+        ColorModel c = b.getColorModel();
+        boolean isAlphaPremul = c.isAlphaPremultiplied();
+        WritableRaster raster = b.copyData(null);
+        return new BufferedImage(c, raster, isAlphaPremul, null);
+    }
+
+    private static ImageReader getReader(ImageInputStream stream, Object input) throws IOException
+    {
+        if (stream == null)
+        {
+            throw new FileNotFoundException("Cannot read " + input);
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+        if (!readers.hasNext())
+        {
+            throw new IOException("Unsupported image format: " + input);
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(stream, true, true);
+        return reader;
+    }
+
+    /**
+     * Reads the image size from the header without decoding any pixels.
+     */
+    public static Dimension readSize(File file) throws IOException
+    {
+        return readSize(file, file);
+    }
+
+    /**
+     * Like {@link #readSize(File)}, for an encoded image held in memory.
+     */
+    public static Dimension readSize(byte[] data) throws IOException
+    {
+        return readSize(new ByteArrayInputStream(data), "image data");
+    }
+
+    private static Dimension readSize(Object input, Object name) throws IOException
+    {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(input))
+        {
+            ImageReader reader = getReader(stream, name);
+            try
+            {
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            }
+            finally
+            {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Decodes only the given region, clipped to the image. Codecs that can skip data outside the region, such as
+     * tiled or progressive formats, avoid decoding it entirely.
+     */
+    public static BufferedImage readRegion(File file, Rectangle region) throws IOException
+    {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(file))
+        {
+            ImageReader reader = getReader(stream, file);
+            try
+            {
+                Rectangle bounds = new Rectangle(0, 0, reader.getWidth(0), reader.getHeight(0));
+                Rectangle clipped = bounds.intersection(region);
+                if (clipped.isEmpty())
+                {
+                    throw new IOException("Region " + region + " is outside of " + file);
+                }
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(clipped);
+                return reader.read(0, param);
+            }
+            finally
+            {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Bounding box of the border points, which contains every cut point.
+     */
+    public static Rectangle getBorderBounds(ArrayList<Point2> borderPoints)
+    {
+        Rectangle bounds = null;
+        for (Point2 p : borderPoints)
+        {
+            if (bounds == null)
+            {
+                bounds = new Rectangle(p.x, p.y, 1, 1);
+            }
+            else
+            {
+                bounds.add(new Rectangle(p.x, p.y, 1, 1));
+            }
+        }
+        return bounds == null ? new Rectangle() : bounds;
+    }
+
+    /**
+     * Window of the target read by a solve: the cut points in target coordinates plus a one pixel border.
+     */
+    public static Rectangle getTargetWindow(ArrayList<Point2> cutPoints, int imageX, int imageY)
+    {
+        Rectangle window = null;
+        for (Point2 p : cutPoints)
+        {
+            if (window == null)
+            {
+                window = new Rectangle(p.x + imageX, p.y + imageY, 1, 1);
+            }
+            else
+            {
+                window.add(new Rectangle(p.x + imageX, p.y + imageY, 1, 1));
+            }
+        }
+        if (window == null)
+        {
+            return new Rectangle();
+        }
+        window.grow(1, 1);
+        return window;
+    }
+
+    /**
+     * Streams the image as PNG. The compression level runs from 0 (fastest, largest) to 9 (slowest,
+     * smallest) and is ignored by writers that do not support explicit compression.
+     */
+    public static void writePng(BufferedImage image, File file, int compressionLevel) throws IOException
+    {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16))
+        {
+            writePng(image, out, compressionLevel);
+        }
+    }
+
+    public static void writePng(BufferedImage image, OutputStream out, int compressionLevel) throws IOException
+    {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("png");
+        if (!writers.hasNext())
+        {
+            throw new IOException("No PNG writer available");
+        }
+        ImageWriter writer = writers.next();
+
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (param.canWriteCompressed())
+        {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            int level = Math.max(0, Math.min(compressionLevel, 9));
+            param.setCompressionQuality(1.0f - level / 9.0f);
+        }
+
+        try (ImageOutputStream stream = new MemoryCacheImageOutputStream(out))
+        {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        }
+        finally
+        {
+            writer.dispose();
+        }
+    }
+}
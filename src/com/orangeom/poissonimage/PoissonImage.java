@@ -5,11 +5,10 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.BufferedImage;
-import java.awt.image.ColorModel;
-import java.awt.image.WritableRaster;
+import java.awt.image.DataBufferInt;
 import java.io.*;
 import java.util.ArrayList;
-import java.util.Stack;
+import java.util.Collections;
 
 /**
  * Created by matthew on 6/28/2017.
@@ -43,6 +42,14 @@ class PoissonImagePanel extends JPanel implements ActionListener, ItemListener
     private static final int MASK_INSIDE = -1;
     private static final int MASK_BORDER = -2;
     private static final int MASK_OUTSIDE = -3;
+    private static final ImageCache IMAGE_CACHE = new ImageCache(512L << 20);
+    private static final int PNG_COMPRESSION_LEVEL = Integer.getInteger("poissonimage.pngCompression", 3);
+    private static final File CHECKPOINT_DIR = new File(System.getProperty("java.io.tmpdir"), "poissonimage");
+    // Checkpoints take about 48 bytes per pixel of every large blend, so they are only written when an interval
+    // is given
+    private static final int CHECKPOINT_INTERVAL = Integer.getInteger("poissonimage.checkpointInterval", 0);
+    // Blends with more than one worker process are solved by DomainSolver, for cuts too large for this JVM
+    private static final int SOLVER_WORKERS = Integer.getInteger("poissonimage.workers", 0);
     private int m_cursorX = 0;
     private int m_cursorY = 0;
 
@@ -61,12 +68,24 @@ class PoissonImagePanel extends JPanel implements ActionListener, ItemListener
     private BufferedImage m_targetBackup;
     private BufferedImage m_sourceImage;
     private BufferedImage m_cutImage;
+    // Position of the cut image within the source
+    private int m_cutX = 0;
+    private int m_cutY = 0;
+
+    // Display copies in the screen format, rebuilt only when the images above change
+    private BufferedImage m_targetDisplay;
+    private BufferedImage m_sourceDisplay;
+    private BufferedImage m_cutDisplay;
+    private BufferedImage m_maskOverlay;
+    private boolean m_maskDirty = true;
 
     private PoissonState m_state;
     private boolean m_showCutImage = true;
     private boolean m_useMixedGradients = true;
+    private boolean m_useAdaptiveSolver = false;
 
     private JFileChooser m_fileChooser;
+    private UndoHistory m_history = new UndoHistory(256L << 20);
 
     private boolean pointInImage(int x, int y)
     {
@@ -86,19 +105,6 @@ class PoissonImagePanel extends JPanel implements ActionListener, ItemListener
         return new Point2(px, py);
     }
 
-    private Point2 clipPointToBox(int x0, int y0, int w, int h, int x, int y)
-    {
-        int px = x;
-        int py = y;
-
-        px = Math.max(x0, px);
-        px = Math.min(x0 + w, px);
-        py = Math.max(y0, py);
-        py = Math.min(y0 + h, py);
-
-        return new Point2(px, py);
-    }
-
     private void moveBorder(int dx, int dy)
     {
         for (Point2 p : m_borderPoints)
@@ -116,125 +122,91 @@ class PoissonImagePanel extends JPanel implements ActionListener, ItemListener
                 m_mask[x][y] = MASK_INSIDE;
             }
         }
+        m_maskDirty = true;
     }
 
-    private void getCutAreaPoints()
+    private CutRegion cutImage()
     {
-        // Fill in pixels of border
-        int len = m_borderPoints.size();
-        for (int i = 0; i < len; i++)
+        // Only the part of the source under the border is cut, so the cut image is no larger than the border
+        Rectangle bounds = ImageRegionIO.getBorderBounds(m_borderPoints);
+        bounds.translate(-m_imageX, -m_imageY);
+        bounds.grow(1, 1);
+        bounds = bounds.intersection(new Rectangle(0, 0, m_imageW, m_imageH));
+        if (bounds.isEmpty())
         {
-            Point2 start = m_borderPoints.get(i);
-            start = clipPointToBox(0, 0, m_maskW - 1, m_maskH - 1, start.x, start.y);
-            Point2 end = m_borderPoints.get((i + 1) % len);
-            end = clipPointToBox(0, 0, m_maskW - 1, m_maskH - 1, end.x, end.y);
-            Point2 d = end.sub(start);
-
-            double r = 1.0 / (double) Math.abs(d.x);
-            int dir = d.x > 0 ? 1 : -1;
-            for (int x = 0; x < Math.abs(d.x); x++)
-            {
-
-                int h = (int) Math.round(r * (double)x * (double) d.y);
-                m_mask[start.x + x * dir][start.y + h] = MASK_BORDER;
-            }
-
-            r = 1.0 / (double) Math.abs(d.y);
-            dir = d.y > 0 ? 1 : -1;
-
-            for (int y = 0; y < Math.abs(d.y); y++)
-            {
-                int w = (int) Math.round(r * (double)y * (double) d.x);
-                m_mask[start.x + w][start.y + y * dir] = MASK_BORDER;
-            }
+            bounds = new Rectangle(0, 0, m_imageW, m_imageH);
         }
+        BufferedImage crop = m_sourceImage.getSubimage(bounds.x, bounds.y, bounds.width, bounds.height);
+
+        CutRegion region = CutRegion.cut(crop, m_borderPoints, m_mask, m_imageX + bounds.x, m_imageY + bounds.y);
+        m_cutX = bounds.x;
+        m_cutY = bounds.y;
+        m_cutPoints = region.cutPoints;
+        m_cutImage = region.cutImage;
+        m_maskDirty = true;
+        return region;
+    }
 
-        // Find an outside point
-        Stack<Point2> stack = new Stack<>();
-        outer:
-        for (int y = 0; y < m_maskH; y++)
+    // Snapshots are only worth keeping for re-blends onto the same target
+    private static void clearCheckpoints()
+    {
+        File[] files = CHECKPOINT_DIR.listFiles((dir, name) -> name.endsWith(".ckpt"));
+        if (files != null)
         {
-            for (int x = 0; x < m_maskW; x++)
+            for (File file : files)
             {
-                if (m_mask[x][y] == MASK_INSIDE)
+                if (!file.delete())
                 {
-                    stack.push(new Point2(x, y));
-                    break outer;
+                    file.deleteOnExit();
                 }
             }
         }
+    }
 
-        // Fill all outside points
-        while (!stack.empty())
+    private BufferedImage toDisplayImage(BufferedImage image)
+    {
+        GraphicsConfiguration gc = getGraphicsConfiguration();
+        if (image == null || gc == null)
         {
-            Point2 p = stack.pop();
-            if (p.x < 0 || p.x > m_maskW - 1 || p.y < 0 || p.y > m_maskH - 1)
-            {
-                continue;
-            }
-            if (m_mask[p.x][p.y] == MASK_OUTSIDE)
-            {
-                continue;
-            }
-            if (m_mask[p.x][p.y] == MASK_BORDER)
-            {
-                continue;
-            }
-            m_mask[p.x][p.y] = MASK_OUTSIDE;
-            stack.push(new Point2(p.x + 1, p.y));
-            stack.push(new Point2(p.x - 1, p.y));
-            stack.push(new Point2(p.x, p.y + 1));
-            stack.push(new Point2(p.x, p.y - 1));
+            return image;
         }
 
-        m_cutPoints.clear();
-        for (int y = 0; y < m_maskH; y++)
-        {
-            for (int x = 0; x < m_maskW; x++)
-            {
-                if (m_mask[x][y] == MASK_INSIDE)
-                {
-                    m_cutPoints.add(new Point2(x - m_imageX, y - m_imageY));
-                    m_mask[x][y] = m_cutPoints.size() - 1;
-                }
-            }
-        }
+        BufferedImage display = gc.createCompatibleImage(image.getWidth(), image.getHeight(),
+                image.getColorModel().getTransparency());
+        Graphics2D g = display.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return display;
     }
 
-    private void getCutImage()
+    private void invalidateDisplayImages()
     {
-        m_cutImage = new BufferedImage(m_imageW, m_imageH, BufferedImage.TYPE_INT_ARGB);
-        for (int y = 0; y < m_imageH; y++)
-        {
-            for (int x = 0; x < m_imageW; x++)
-            {
-                int rx = m_imageX + x;
-                int ry = m_imageY + y;
-
-                if (!(rx < 0 || rx >= m_maskW || ry < 0 || ry >= m_maskH)
-                        && m_mask[rx][ry] > MASK_INSIDE)
-                {
-                    int c = m_sourceImage.getRGB(x, y);
-                    Color newC = new Color((c & 0x00ff0000) >> 16, (c & 0x0000ff00) >> 8, c & 0x000000ff, 255);
-                    m_cutImage.setRGB(x, y, newC.getRGB());
+        m_targetDisplay = null;
+        m_sourceDisplay = null;
+        m_cutDisplay = null;
+    }
 
-                }
-                else
-                {
-                    Color newC = new Color(255, 255, 255, 0);
-                    m_cutImage.setRGB(x, y, newC.getRGB());
-                }
-            }
+    // Converts only the given area of the target after a blend instead of the whole image
+    private void refreshTargetDisplay(Rectangle area)
+    {
+        if (m_targetDisplay == null)
+        {
+            return;
+        }
+        Rectangle r = area.intersection(new Rectangle(0, 0, m_targetImage.getWidth(), m_targetImage.getHeight()));
+        if (r.isEmpty())
+        {
+            return;
         }
+        Graphics2D g = m_targetDisplay.createGraphics();
+        g.drawImage(m_targetImage, r.x, r.y, r.x + r.width, r.y + r.height,
+                r.x, r.y, r.x + r.width, r.y + r.height, null);
+        g.dispose();
     }
 
-    // https://stackoverflow.com/a/3514297
-    static BufferedImage copyImage(BufferedImage b)
+    private Rectangle getSourceBounds()
     {
-        ColorModel c = b.getColorModel();
-        boolean isAlphaPremul = c.isAlphaPremultiplied();
-        WritableRaster raster = b.copyData(null);
-        return new BufferedImage(c, raster, isAlphaPremul, null);
+        return new Rectangle(m_imageX, m_imageY, m_imageW + 1, m_imageH + 1);
     }
 
     public PoissonImagePanel()
@@ -254,7 +226,7 @@ class PoissonImagePanel extends JPanel implements ActionListener, ItemListener
             e.printStackTrace();
         }
 
-        m_targetBackup = copyImage(m_targetImage);
+        m_targetBackup = ImageRegionIO.copyImage(m_targetImage);
 
         m_borderPoints = new ArrayList<>();
         m_cutPoints = new ArrayList<>();
@@ -296,9 +268,12 @@ class PoissonImagePanel extends JPanel implements ActionListener, ItemListener
                         if (m_imageX - dx > -m_imageW && m_imageX - dx < m_mask.length
                                 && m_imageY - dy > -m_imageH && m_imageY - dy < m_mask[0].length)
                         {
+                            // Only the area uncovered by the old position and covered by the new one changes
+                            Rectangle damaged = getSourceBounds();
                             m_imageX -= dx;
                             m_imageY -= dy;
                             moveBorder(-dx, -dy);
+                            repaint(damaged.union(getSourceBounds()));
                         }
                     }
 
@@ -307,10 +282,19 @@ class PoissonImagePanel extends JPanel implements ActionListener, ItemListener
                 }
                 else if (m_state == PoissonState.BORDER)
                 {
-                    m_borderPoints.add(clipPointToImage(x, y));
+                    // The new point adds a segment from the last point and moves the closing segment
+                    Point2 p = clipPointToImage(x, y);
+                    Rectangle damaged = new Rectangle(p.x, p.y, 1, 1);
+                    if (!m_borderPoints.isEmpty())
+                    {
+                        Point2 first = m_borderPoints.get(0);
+                        Point2 last = m_borderPoints.get(m_borderPoints.size() - 1);
+                        damaged.add(new Rectangle(first.x, first.y, 1, 1));
+                        damaged.add(new Rectangle(last.x, last.y, 1, 1));
+                    }
+                    m_borderPoints.add(p);
+                    repaint(damaged);
                 }
-
-                repaint();
             }
         });
 
@@ -323,7 +307,6 @@ class PoissonImagePanel extends JPanel implements ActionListener, ItemListener
                 {
                     m_state = PoissonState.BORDER;
                 }
-                repaint();
             }
 
             @Override
@@ -333,11 +316,40 @@ class PoissonImagePanel extends JPanel implements ActionListener, ItemListener
                 {
                     m_state = PoissonState.DRAGGING;
                 }
-                repaint();
             }
         });
     }
 
+    // Encodes off the event thread so the panel stays responsive while large targets are written
+    private void saveImage(BufferedImage image, File file)
+    {
+        new SwingWorker<Void, Void>()
+        {
+            @Override
+            protected Void doInBackground() throws IOException
+            {
+                long start = System.nanoTime();
+                ImageRegionIO.writePng(image, file, PNG_COMPRESSION_LEVEL);
+                double time = (System.nanoTime() - start) / 1e9;
+                System.out.println("Saved " + file + " in " + time + "s");
+                return null;
+            }
+
+            @Override
+            protected void done()
+            {
+                try
+                {
+                    get();
+                }
+                catch (Exception ex)
+                {
+                    ex.printStackTrace();
+                }
+            }
+        }.execute();
+    }
+
     public JMenuBar getMenuBar()
     {
         JMenuBar menuBar;
@@ -365,6 +377,18 @@ class PoissonImagePanel extends JPanel implements ActionListener, ItemListener
         menu = new JMenu("Edit");
         menuBar.add(menu);
 
+        menuItem = new JMenuItem("Undo", KeyEvent.VK_U);
+        menuItem.addActionListener(this);
+        menuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, ActionEvent.CTRL_MASK));
+        menu.add(menuItem);
+
+        menuItem = new JMenuItem("Redo", KeyEvent.VK_D);
+        menuItem.addActionListener(this);
+        menuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y, ActionEvent.CTRL_MASK));
+        menu.add(menuItem);
+
+        menu.addSeparator();
+
         cbMenuItem = new JCheckBoxMenuItem("Show image", true);
         cbMenuItem.addItemListener(this);
         cbMenuItem.setMnemonic(KeyEvent.VK_I);
@@ -375,6 +399,10 @@ class PoissonImagePanel extends JPanel implements ActionListener, ItemListener
         cbMenuItem.addItemListener(this);
         menu.add(cbMenuItem);
 
+        cbMenuItem = new JCheckBoxMenuItem("Use adaptive solver", false);
+        cbMenuItem.addItemListener(this);
+        menu.add(cbMenuItem);
+
         menu.addSeparator();
 
         menuItem = new JMenuItem("Reset image position");
@@ -417,17 +445,22 @@ class PoissonImagePanel extends JPanel implements ActionListener, ItemListener
                 File file = m_fileChooser.getSelectedFile();
                 try
                 {
-                    m_targetImage = ImageIO.read(file);
+                    // The cached image is shared, so it serves as the backup and blends go into a copy
+                    m_targetBackup = IMAGE_CACHE.read(file);
+                    m_targetImage = ImageRegionIO.copyImage(m_targetBackup);
+                    m_history.clear();
+                    clearCheckpoints();
                     m_maskW = m_targetImage.getWidth();
                     m_maskH = m_targetImage.getHeight();
                     m_mask = new int[m_maskW][m_maskH];
                     clearMask();
+                    revalidate();
+                    System.out.println(IMAGE_CACHE.getStats());
                 }
                 catch (IOException ex)
                 {
                     ex.printStackTrace();
                 }
-                m_targetBackup = copyImage(m_targetImage);
             }
         }
         if ("Select source image".equals(source.getText()))
@@ -439,7 +472,7 @@ class PoissonImagePanel extends JPanel implements ActionListener, ItemListener
                 File file = m_fileChooser.getSelectedFile();
                 try
                 {
-                    m_sourceImage = ImageIO.read(file);
+                    m_sourceImage = IMAGE_CACHE.read(file);
                     m_imageW = m_sourceImage.getWidth();
                     m_imageH = m_sourceImage.getHeight();
                     m_imageX = 0;
@@ -448,6 +481,7 @@ class PoissonImagePanel extends JPanel implements ActionListener, ItemListener
                     m_cutPoints = new ArrayList<>();
                     m_cutImage = null;
                     clearMask();
+                    System.out.println(IMAGE_CACHE.getStats());
                 }
                 catch (IOException ex)
                 {
@@ -466,14 +500,7 @@ class PoissonImagePanel extends JPanel implements ActionListener, ItemListener
                 {
                     file = new File(file + ".png");
                 }
-                try
-                {
-                    ImageIO.write(m_targetImage, "png", file);
-                }
-                catch (IOException ex)
-                {
-                    ex.printStackTrace();
-                }
+                saveImage(ImageRegionIO.copyImage(m_targetImage), file);
             }
         }
         if ("Reset image position".equals(source.getText()))
@@ -490,24 +517,56 @@ class PoissonImagePanel extends JPanel implements ActionListener, ItemListener
         }
         if ("Reset target image".equals(source.getText()))
         {
-            m_targetImage = copyImage(m_targetBackup);
+            m_targetImage = ImageRegionIO.copyImage(m_targetBackup);
+            m_history.clear();
+        }
+        if ("Undo".equals(source.getText()))
+        {
+            m_history.undo();
+        }
+        if ("Redo".equals(source.getText()))
+        {
+            m_history.redo();
         }
         if ("Cut image".equals(source.getText()))
         {
-            clearMask();
-            getCutAreaPoints();
-            getCutImage();
+            cutImage();
         }
         if ("Blend".equals(source.getText()))
         {
-            clearMask();
-            getCutAreaPoints();
-            getCutImage();
-            Solver solver = new Solver(m_targetImage, m_cutImage, m_cutPoints,
-                    m_mask, m_imageX, m_imageY, m_useMixedGradients);
-            solver.run();
-            solver.updateTarget();
+            CutRegion region = cutImage();
+            UndoHistory.Edit edit = m_history.begin(m_targetImage, region);
+            if (m_useAdaptiveSolver)
+            {
+                QuadtreeSolver.blend(m_targetImage, region, m_useMixedGradients);
+            }
+            else if (SOLVER_WORKERS > 1)
+            {
+                try
+                {
+                    new DomainSolver(m_targetImage, region, m_useMixedGradients, SOLVER_WORKERS).run();
+                }
+                catch (IOException ex)
+                {
+                    ex.printStackTrace();
+                }
+            }
+            else
+            {
+                Solver.solveAll(m_targetImage, Collections.singletonList(region), m_useMixedGradients,
+                        Runtime.getRuntime().availableProcessors(), CHECKPOINT_INTERVAL > 0 ? CHECKPOINT_DIR : null,
+                        CHECKPOINT_INTERVAL);
+            }
+            m_history.commit(edit);
+
+            // The solve only wrote inside the region's window, so only that part of the display is converted
+            Rectangle window = ImageRegionIO.getTargetWindow(region.cutPoints, region.imageX, region.imageY);
+            refreshTargetDisplay(window);
+            m_cutDisplay = null;
+            repaint(window.union(getSourceBounds()));
+            return;
         }
+        invalidateDisplayImages();
         repaint();
     }
 
@@ -522,12 +581,20 @@ class PoissonImagePanel extends JPanel implements ActionListener, ItemListener
         {
             m_useMixedGradients = !m_useMixedGradients;
         }
+        if ("Use adaptive solver".equals(source.getText()))
+        {
+            m_useAdaptiveSolver = !m_useAdaptiveSolver;
+        }
         repaint();
     }
 
     public Dimension getPreferredSize()
     {
-        return new Dimension(3840, 2160);
+        if (m_targetImage == null)
+        {
+            return new Dimension(3840, 2160);
+        }
+        return new Dimension(m_targetImage.getWidth(), m_targetImage.getHeight());
     }
 
     protected void paintImageBorder(Graphics g)
@@ -547,49 +614,67 @@ class PoissonImagePanel extends JPanel implements ActionListener, ItemListener
         g.setColor(new Color(50, 205, 50, 122));
         for (Point2 p : m_cutPoints)
         {
-            g.drawLine(p.x + m_imageX, p.y + m_imageY, p.x + m_imageX, p.y + m_imageY);
+            int x = p.x + m_imageX + m_cutX;
+            int y = p.y + m_imageY + m_cutY;
+            g.drawLine(x, y, x, y);
         }
     }
 
     protected void displayMask(Graphics g)
     {
-        BufferedImage image = new BufferedImage(m_maskW, m_maskH, BufferedImage.TYPE_INT_RGB);
-        for (int x = 0; x < m_maskW; x++)
+        if (m_maskOverlay == null || m_maskOverlay.getWidth() != m_maskW || m_maskOverlay.getHeight() != m_maskH)
         {
-            for (int y = 0; y < m_maskH; y++)
+            m_maskOverlay = new BufferedImage(m_maskW, m_maskH, BufferedImage.TYPE_INT_RGB);
+            m_maskDirty = true;
+        }
+
+        if (m_maskDirty)
+        {
+            int[] pixels = ((DataBufferInt) m_maskOverlay.getRaster().getDataBuffer()).getData();
+            int border = Color.BLUE.getRGB();
+            int inside = Color.WHITE.getRGB();
+            int outside = Color.BLACK.getRGB();
+            for (int x = 0; x < m_maskW; x++)
             {
-                if (m_mask[x][y] == MASK_BORDER)
-                {
-                    image.setRGB(x, y, Color.BLUE.getRGB());
-                }
-                else if (m_mask[x][y] > MASK_INSIDE)
-                {
-                    image.setRGB(x, y, Color.WHITE.getRGB());
-                }
-                else
+                for (int y = 0; y < m_maskH; y++)
                 {
-                    image.setRGB(x, y, Color.BLACK.getRGB());
+                    int type = m_mask[x][y];
+                    pixels[y * m_maskW + x] = type == MASK_BORDER ? border : type > MASK_INSIDE ? inside : outside;
                 }
             }
+            m_maskDirty = false;
         }
-        g.drawImage(image, m_maskW, 0, this);
+        g.drawImage(m_maskOverlay, m_maskW, 0, this);
     }
 
     protected void paintComponent(Graphics g)
     {
         super.paintComponent(g);
-        g.drawImage(m_targetImage, 0, 0, this);
+
+        if (m_targetDisplay == null)
+        {
+            m_targetDisplay = toDisplayImage(m_targetImage);
+        }
+        g.drawImage(m_targetDisplay, 0, 0, this);
 //        displayMask(g);
 
         if (m_showCutImage)
         {
             if (m_cutImage != null)
             {
-                g.drawImage(m_cutImage, m_imageX, m_imageY, this);
+                if (m_cutDisplay == null)
+                {
+                    m_cutDisplay = toDisplayImage(m_cutImage);
+                }
+                g.drawImage(m_cutDisplay, m_imageX + m_cutX, m_imageY + m_cutY, this);
             }
             else
             {
-                g.drawImage(m_sourceImage, m_imageX, m_imageY, this);
+                if (m_sourceDisplay == null)
+                {
+                    m_sourceDisplay = toDisplayImage(m_sourceImage);
+                }
+                g.drawImage(m_sourceDisplay, m_imageX, m_imageY, this);
                 paintImageBorder(g);
             }
         }
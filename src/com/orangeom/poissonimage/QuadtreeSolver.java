@@ -0,0 +1,721 @@
+package com.orangeom.poissonimage;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Adaptive variant of {@link Solver} for large cuts. The blended image is written as the cut image plus a
+ * correction field, and the correction is smooth away from the border. Pixels near the border, or near enough
+ * pixels where mixed gradients pull the guidance away from the cut image, keep one unknown each, while the
+ * rest is covered by quadtree cells whose correction is bilinearly interpolated from the cell corners. The
+ * reduced least squares system is solved with preconditioned conjugate gradients.
+ *
+ * Based on "Efficient Gradient-Domain Compositing Using Quadtrees" (Agarwala 2007).
+ */
+public class QuadtreeSolver
+{
+    private static final int MASK_INSIDE = -1;
+    private static final int MAX_CELL_SIZE = 64;
+    // Distance to the nearest pixel that is not smooth, in multiples of the cell size, for a cell to stay coarse
+    private static final int CELL_MARGIN = 2;
+    // Largest difference between guidance and cut image gradient, in levels, that still counts as smooth
+    private static final int SMOOTH_TOLERANCE = 8;
+    // Above this ratio of unknowns to pixels the tree build and assembly cost more than the reduction saves
+    private static final double MAX_UNKNOWN_RATIO = 0.5;
+    private static final int MAX_ITERATIONS = 10000;
+    private static final double TOLERANCE = 1e-6;
+
+    private BufferedImage m_targetImage;
+    private BufferedImage m_cutImage;
+
+    private ArrayList<Point2> m_cutPoints;
+    private int[][] m_mask;
+    private int m_imageX;
+    private int m_imageY;
+
+    // Bounding box of the cut in mask coordinates
+    private int m_boxX;
+    private int m_boxY;
+    private int m_boxW;
+    private int m_boxH;
+    private int[] m_insideSum;
+    private int[] m_smoothSum;
+
+    // Quadtree leaves; cells of size 1 only own their top left node
+    private int m_cellCount;
+    private int[] m_cellX;
+    private int[] m_cellY;
+    private int[] m_cellSize;
+    private int[] m_cellNodes;
+    private int[] m_pixelCell;
+
+    private int m_n;
+    private int[] m_nodeIndex;
+
+    // Reduced normal equations, first as growable rows and then compressed
+    private int[][] m_rowCols;
+    private double[][] m_rowVals;
+    private int[] m_rowLen;
+    private int[] m_rowStart;
+    private int[] m_cols;
+    private double[] m_vals;
+    private double[][] m_b;
+    private double[][] m_y;
+
+    private boolean m_mixedGradients;
+    private int m_iterations;
+
+    public QuadtreeSolver(BufferedImage targetImage, BufferedImage cutImage, ArrayList<Point2> cutPoints,
+                          int[][] mask, int imageX, int imageY, boolean mixedGradients)
+    {
+        m_targetImage = targetImage;
+        m_cutImage = cutImage;
+        m_cutPoints = cutPoints;
+        m_mask = mask;
+        m_imageX = imageX;
+        m_imageY = imageY;
+        m_mixedGradients = mixedGradients;
+
+        // The matrix is only assembled in run, so the unknown count can be checked cheaply first
+        buildTree(mixedGradients);
+    }
+
+    /**
+     * Blends a cut with the reduced solve, or with {@link Solver#solveAll} if the quadtree barely coarsens.
+     * Returns the iterations of the solve that ran.
+     */
+    public static int blend(BufferedImage targetImage, CutRegion region, boolean mixedGradients)
+    {
+        return blend(targetImage, region, mixedGradients, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static int blend(BufferedImage targetImage, CutRegion region, boolean mixedGradients,
+                            int maxThreads)
+    {
+        QuadtreeSolver solver = new QuadtreeSolver(targetImage, region.cutImage, region.cutPoints, region.mask,
+                region.imageX, region.imageY, mixedGradients);
+        if (!solver.isWorthwhile())
+        {
+            System.out.println("Unknowns: " + solver.getUnknownCount() + " of " + region.cutPoints.size()
+                    + " pixels, using the full solver");
+            return Solver.solveAll(targetImage, Collections.singletonList(region), mixedGradients, maxThreads);
+        }
+        solver.run();
+        solver.updateTarget();
+        return solver.getIterations();
+    }
+
+    public boolean isWorthwhile()
+    {
+        return m_n <= MAX_UNKNOWN_RATIO * m_cutPoints.size();
+    }
+
+    private int colorR(int rgb)
+    {
+        return (rgb & 0xFF0000) >> 16;
+    }
+
+    private int colorG(int rgb)
+    {
+        return (rgb & 0xFF00) >> 8;
+    }
+
+    private int colorB(int rgb)
+    {
+        return rgb & 0xFF;
+    }
+
+    private int channel(int rgb, int k)
+    {
+        return k == 0 ? colorR(rgb) : k == 1 ? colorG(rgb) : colorB(rgb);
+    }
+
+    private boolean isInside(int x, int y)
+    {
+        return m_mask[x][y] > MASK_INSIDE;
+    }
+
+    private boolean inBounds(int x, int y)
+    {
+        return x >= 1 && x < m_mask.length - 1 && y >= 1 && y < m_mask[0].length - 1;
+    }
+
+    // The correction is smooth where the guidance is within a tolerance of the cut image gradient on both edges
+    private boolean isSmooth(int x, int y, boolean mixedGradients)
+    {
+        if (!isInside(x, y))
+        {
+            return false;
+        }
+        if (!mixedGradients)
+        {
+            return true;
+        }
+
+        int gp_rgb = m_cutImage.getRGB(x - m_imageX, y - m_imageY);
+        int fp_rgb = m_targetImage.getRGB(x, y);
+        for (int dir = 0; dir < 2; dir++)
+        {
+            int qx = x + (dir == 0 ? 1 : 0);
+            int qy = y + (dir == 1 ? 1 : 0);
+            if (qx >= m_mask.length || qy >= m_mask[0].length || !isInside(qx, qy))
+            {
+                continue;
+            }
+            int gq_rgb = m_cutImage.getRGB(qx - m_imageX, qy - m_imageY);
+            int fq_rgb = m_targetImage.getRGB(qx, qy);
+            for (int ch = 0; ch < 3; ch++)
+            {
+                int dg = channel(gp_rgb, ch) - channel(gq_rgb, ch);
+                int df = channel(fp_rgb, ch) - channel(fq_rgb, ch);
+                // The guidance is the target gradient where it wins, so v - dg is df - dg there and 0 elsewhere
+                if (Math.abs(df) > Math.abs(dg) && Math.abs(df - dg) > SMOOTH_TOLERANCE)
+                {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Number of marked pixels in a box given in bounding box coordinates, clipped to the bounding box
+    private int boxCount(int[] sum, int x0, int y0, int w, int h)
+    {
+        int x1 = Math.min(x0 + w, m_boxW);
+        int y1 = Math.min(y0 + h, m_boxH);
+        x0 = Math.max(x0, 0);
+        y0 = Math.max(y0, 0);
+        if (x0 >= x1 || y0 >= y1)
+        {
+            return 0;
+        }
+        int stride = m_boxW + 1;
+        return sum[y1 * stride + x1] - sum[y0 * stride + x1] - sum[y1 * stride + x0] + sum[y0 * stride + x0];
+    }
+
+    private void buildTree(boolean mixedGradients)
+    {
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        for (Point2 p : m_cutPoints)
+        {
+            minX = Math.min(minX, p.x + m_imageX);
+            minY = Math.min(minY, p.y + m_imageY);
+            maxX = Math.max(maxX, p.x + m_imageX);
+            maxY = Math.max(maxY, p.y + m_imageY);
+        }
+        if (m_cutPoints.isEmpty())
+        {
+            minX = minY = 0;
+            maxX = maxY = -1;
+        }
+        m_boxX = minX;
+        m_boxY = minY;
+        m_boxW = maxX - minX + 1;
+        m_boxH = maxY - minY + 1;
+
+        int stride = m_boxW + 1;
+        m_insideSum = new int[stride * (m_boxH + 1)];
+        m_smoothSum = new int[stride * (m_boxH + 1)];
+        for (int y = 0; y < m_boxH; y++)
+        {
+            int insideRow = 0;
+            int smoothRow = 0;
+            for (int x = 0; x < m_boxW; x++)
+            {
+                insideRow += isInside(m_boxX + x, m_boxY + y) ? 1 : 0;
+                smoothRow += isSmooth(m_boxX + x, m_boxY + y, mixedGradients) ? 1 : 0;
+                m_insideSum[(y + 1) * stride + x + 1] = m_insideSum[y * stride + x + 1] + insideRow;
+                m_smoothSum[(y + 1) * stride + x + 1] = m_smoothSum[y * stride + x + 1] + smoothRow;
+            }
+        }
+
+        m_cellX = new int[64];
+        m_cellY = new int[64];
+        m_cellSize = new int[64];
+        m_pixelCell = new int[m_boxW * m_boxH];
+        Arrays.fill(m_pixelCell, -1);
+
+        int size = 1;
+        while (size < Math.max(m_boxW, m_boxH))
+        {
+            size *= 2;
+        }
+        subdivide(0, 0, size);
+
+        m_nodeIndex = new int[m_boxW * m_boxH];
+        Arrays.fill(m_nodeIndex, -1);
+        m_cellNodes = new int[m_cellCount * 4];
+        for (int c = 0; c < m_cellCount; c++)
+        {
+            int x = m_cellX[c];
+            int y = m_cellY[c];
+            int s = m_cellSize[c];
+            m_cellNodes[c * 4] = getNode(x, y);
+            m_cellNodes[c * 4 + 1] = s > 1 ? getNode(x + s, y) : -1;
+            m_cellNodes[c * 4 + 2] = s > 1 ? getNode(x, y + s) : -1;
+            m_cellNodes[c * 4 + 3] = s > 1 ? getNode(x + s, y + s) : -1;
+        }
+    }
+
+    private void subdivide(int x, int y, int s)
+    {
+        if (boxCount(m_insideSum, x, y, s, s) == 0)
+        {
+            return;
+        }
+
+        boolean leaf = s == 1;
+        int margin = CELL_MARGIN * s;
+        int extent = s + 2 * margin;
+        if (!leaf && s <= MAX_CELL_SIZE && x - margin >= 0 && y - margin >= 0
+                && x + s + margin <= m_boxW && y + s + margin <= m_boxH)
+        {
+            leaf = boxCount(m_smoothSum, x - margin, y - margin, extent, extent) == extent * extent;
+        }
+
+        if (leaf)
+        {
+            addCell(x, y, s);
+            return;
+        }
+
+        int h = s / 2;
+        subdivide(x, y, h);
+        subdivide(x + h, y, h);
+        subdivide(x, y + h, h);
+        subdivide(x + h, y + h, h);
+    }
+
+    private void addCell(int x, int y, int s)
+    {
+        if (m_cellCount == m_cellX.length)
+        {
+            m_cellX = Arrays.copyOf(m_cellX, m_cellCount * 2);
+            m_cellY = Arrays.copyOf(m_cellY, m_cellCount * 2);
+            m_cellSize = Arrays.copyOf(m_cellSize, m_cellCount * 2);
+        }
+        m_cellX[m_cellCount] = x;
+        m_cellY[m_cellCount] = y;
+        m_cellSize[m_cellCount] = s;
+        for (int j = 0; j < s; j++)
+        {
+            Arrays.fill(m_pixelCell, (y + j) * m_boxW + x, (y + j) * m_boxW + x + s, m_cellCount);
+        }
+        m_cellCount++;
+    }
+
+    private int getNode(int x, int y)
+    {
+        int idx = y * m_boxW + x;
+        if (m_nodeIndex[idx] < 0)
+        {
+            m_nodeIndex[idx] = m_n++;
+        }
+        return m_nodeIndex[idx];
+    }
+
+    // Interpolation weights of a pixel in bounding box coordinates; returns the number of nodes written
+    private int getWeights(int x, int y, int[] nodes, double[] w, int offset)
+    {
+        int c = m_pixelCell[y * m_boxW + x];
+        int s = m_cellSize[c];
+        if (s == 1)
+        {
+            nodes[offset] = m_cellNodes[c * 4];
+            w[offset] = 1.0;
+            return 1;
+        }
+
+        double fx = (x - m_cellX[c]) / (double) s;
+        double fy = (y - m_cellY[c]) / (double) s;
+        for (int k = 0; k < 4; k++)
+        {
+            nodes[offset + k] = m_cellNodes[c * 4 + k];
+        }
+        w[offset] = (1 - fx) * (1 - fy);
+        w[offset + 1] = fx * (1 - fy);
+        w[offset + 2] = (1 - fx) * fy;
+        w[offset + 3] = fx * fy;
+        return 4;
+    }
+
+    private void addEntry(int i, int j, double v)
+    {
+        int len = m_rowLen[i];
+        int[] cols = m_rowCols[i];
+        for (int k = 0; k < len; k++)
+        {
+            if (cols[k] == j)
+            {
+                m_rowVals[i][k] += v;
+                return;
+            }
+        }
+        if (len == cols.length)
+        {
+            m_rowCols[i] = Arrays.copyOf(cols, len * 2);
+            m_rowVals[i] = Arrays.copyOf(m_rowVals[i], len * 2);
+        }
+        m_rowCols[i][len] = j;
+        m_rowVals[i][len] = v;
+        m_rowLen[i]++;
+    }
+
+    // Adds the term (a . y - d)^2 to the energy for each channel
+    private void addTerm(int[] nodes, double[] a, int count, double[] d)
+    {
+        for (int k = 0; k < count; k++)
+        {
+            if (a[k] == 0.0)
+            {
+                continue;
+            }
+            for (int l = 0; l < count; l++)
+            {
+                if (a[l] != 0.0)
+                {
+                    addEntry(nodes[k], nodes[l], a[k] * a[l]);
+                }
+            }
+            for (int ch = 0; ch < 3; ch++)
+            {
+                m_b[ch][nodes[k]] += a[k] * d[ch];
+            }
+        }
+    }
+
+    // Merges duplicate nodes of a difference of interpolations in place; returns the merged count
+    private int mergeNodes(int[] nodes, double[] a, int count)
+    {
+        int merged = 0;
+        outer:
+        for (int k = 0; k < count; k++)
+        {
+            for (int l = 0; l < merged; l++)
+            {
+                if (nodes[l] == nodes[k])
+                {
+                    a[l] += a[k];
+                    continue outer;
+                }
+            }
+            nodes[merged] = nodes[k];
+            a[merged] = a[k];
+            merged++;
+        }
+        return merged;
+    }
+
+    // Guidance gradient v_pq, or the source gradient when mixed gradients are off
+    private void guidance(int gp_rgb, int gq_rgb, int fp_rgb, int fq_rgb, boolean mixedGradients, double[] v)
+    {
+        for (int ch = 0; ch < 3; ch++)
+        {
+            int dg = channel(gp_rgb, ch) - channel(gq_rgb, ch);
+            int df = channel(fp_rgb, ch) - channel(fq_rgb, ch);
+            v[ch] = (mixedGradients && Math.abs(df) > Math.abs(dg)) ? df : dg;
+        }
+    }
+
+    private void initMatrix(boolean mixedGradients)
+    {
+        m_rowCols = new int[m_n][];
+        m_rowVals = new double[m_n][];
+        m_rowLen = new int[m_n];
+        for (int i = 0; i < m_n; i++)
+        {
+            m_rowCols[i] = new int[8];
+            m_rowVals[i] = new double[8];
+        }
+        m_b = new double[3][m_n];
+
+        int[] nodes = new int[8];
+        double[] a = new double[8];
+        double[] d = new double[3];
+        double[] v = new double[3];
+
+        // Edges between two pixels of the same coarse cell, accumulated per cell
+        double[] local = new double[16];
+        double[] localB = new double[12];
+        double[] wp = new double[4];
+        double[] wq = new double[4];
+        int[] cellNodes = new int[4];
+        for (int c = 0; c < m_cellCount; c++)
+        {
+            int s = m_cellSize[c];
+            if (s == 1)
+            {
+                continue;
+            }
+            Arrays.fill(local, 0.0);
+            Arrays.fill(localB, 0.0);
+            for (int y = m_cellY[c]; y < m_cellY[c] + s; y++)
+            {
+                for (int x = m_cellX[c]; x < m_cellX[c] + s; x++)
+                {
+                    for (int dir = 0; dir < 2; dir++)
+                    {
+                        int qx = x + (dir == 0 ? 1 : 0);
+                        int qy = y + (dir == 1 ? 1 : 0);
+                        if (qx >= m_cellX[c] + s || qy >= m_cellY[c] + s)
+                        {
+                            continue;
+                        }
+                        getWeights(x, y, cellNodes, wp, 0);
+                        getWeights(qx, qy, cellNodes, wq, 0);
+                        edgeTarget(x, y, qx, qy, mixedGradients, v, d);
+                        for (int k = 0; k < 4; k++)
+                        {
+                            double ak = wp[k] - wq[k];
+                            for (int l = 0; l < 4; l++)
+                            {
+                                local[k * 4 + l] += ak * (wp[l] - wq[l]);
+                            }
+                            for (int ch = 0; ch < 3; ch++)
+                            {
+                                localB[k * 3 + ch] += ak * d[ch];
+                            }
+                        }
+                    }
+                }
+            }
+            for (int k = 0; k < 4; k++)
+            {
+                int i = m_cellNodes[c * 4 + k];
+                for (int l = 0; l < 4; l++)
+                {
+                    addEntry(i, m_cellNodes[c * 4 + l], local[k * 4 + l]);
+                }
+                for (int ch = 0; ch < 3; ch++)
+                {
+                    m_b[ch][i] += localB[k * 3 + ch];
+                }
+            }
+        }
+
+        // Edges crossing cells and edges to the border
+        for (Point2 p : m_cutPoints)
+        {
+            int px = p.x + m_imageX;
+            int py = p.y + m_imageY;
+            int bx = px - m_boxX;
+            int by = py - m_boxY;
+            int cell = m_pixelCell[by * m_boxW + bx];
+
+            for (int dir = 0; dir < 4; dir++)
+            {
+                int qx = px + (dir == 0 ? 1 : dir == 1 ? -1 : 0);
+                int qy = py + (dir == 2 ? 1 : dir == 3 ? -1 : 0);
+                if (qx < 0 || qx >= m_mask.length || qy < 0 || qy >= m_mask[0].length)
+                {
+                    continue;
+                }
+
+                if (isInside(qx, qy))
+                {
+                    // Each inside edge is visited once, from its left or upper pixel
+                    int qCell = m_pixelCell[(qy - m_boxY) * m_boxW + qx - m_boxX];
+                    if (dir == 1 || dir == 3 || qCell == cell)
+                    {
+                        continue;
+                    }
+                    int count = getWeights(bx, by, nodes, a, 0);
+                    int countQ = getWeights(qx - m_boxX, qy - m_boxY, nodes, a, count);
+                    for (int k = count; k < count + countQ; k++)
+                    {
+                        a[k] = -a[k];
+                    }
+                    count = mergeNodes(nodes, a, count + countQ);
+                    edgeTarget(px - m_boxX, py - m_boxY, qx - m_boxX, qy - m_boxY, mixedGradients, v, d);
+                    addTerm(nodes, a, count, d);
+                }
+                else if (inBounds(qx, qy))
+                {
+                    int gp_rgb = m_cutImage.getRGB(p.x, p.y);
+                    int fq_rgb = m_targetImage.getRGB(qx, qy);
+                    for (int ch = 0; ch < 3; ch++)
+                    {
+                        d[ch] = channel(fq_rgb, ch) - channel(gp_rgb, ch);
+                    }
+                    int count = getWeights(bx, by, nodes, a, 0);
+                    addTerm(nodes, a, count, d);
+                }
+            }
+        }
+
+        m_rowStart = new int[m_n + 1];
+        for (int i = 0; i < m_n; i++)
+        {
+            m_rowStart[i + 1] = m_rowStart[i] + m_rowLen[i];
+        }
+        m_cols = new int[m_rowStart[m_n]];
+        m_vals = new double[m_rowStart[m_n]];
+        for (int i = 0; i < m_n; i++)
+        {
+            System.arraycopy(m_rowCols[i], 0, m_cols, m_rowStart[i], m_rowLen[i]);
+            System.arraycopy(m_rowVals[i], 0, m_vals, m_rowStart[i], m_rowLen[i]);
+        }
+        m_rowCols = null;
+        m_rowVals = null;
+        m_rowLen = null;
+    }
+
+    // Right hand side of the correction difference c_p - c_q for an inside edge in bounding box coordinates
+    private void edgeTarget(int x, int y, int qx, int qy, boolean mixedGradients, double[] v, double[] d)
+    {
+        int gp_rgb = m_cutImage.getRGB(x + m_boxX - m_imageX, y + m_boxY - m_imageY);
+        int gq_rgb = m_cutImage.getRGB(qx + m_boxX - m_imageX, qy + m_boxY - m_imageY);
+        if (mixedGradients)
+        {
+            int fp_rgb = m_targetImage.getRGB(x + m_boxX, y + m_boxY);
+            int fq_rgb = m_targetImage.getRGB(qx + m_boxX, qy + m_boxY);
+            guidance(gp_rgb, gq_rgb, fp_rgb, fq_rgb, true, v);
+        }
+        else
+        {
+            guidance(gp_rgb, gq_rgb, 0, 0, false, v);
+        }
+        for (int ch = 0; ch < 3; ch++)
+        {
+            d[ch] = v[ch] - (channel(gp_rgb, ch) - channel(gq_rgb, ch));
+        }
+    }
+
+    private void multiply(double[] x, double[] out)
+    {
+        for (int i = 0; i < m_n; i++)
+        {
+            double sum = 0.0;
+            for (int k = m_rowStart[i]; k < m_rowStart[i + 1]; k++)
+            {
+                sum += m_vals[k] * x[m_cols[k]];
+            }
+            out[i] = sum;
+        }
+    }
+
+    private double dot(double[] a, double[] b)
+    {
+        double sum = 0.0;
+        for (int i = 0; i < m_n; i++)
+        {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    // Jacobi preconditioned conjugate gradients for one channel; returns the iteration count
+    private int solveChannel(double[] b, double[] x, double[] invDiag)
+    {
+        double[] r = b.clone();
+        double[] z = new double[m_n];
+        double[] p = new double[m_n];
+        double[] q = new double[m_n];
+        for (int i = 0; i < m_n; i++)
+        {
+            z[i] = r[i] * invDiag[i];
+            p[i] = z[i];
+        }
+
+        double bNorm = Math.sqrt(dot(b, b));
+        double rz = dot(r, z);
+        int it = 0;
+        while (it < MAX_ITERATIONS && Math.sqrt(dot(r, r)) > TOLERANCE * bNorm)
+        {
+            multiply(p, q);
+            double alpha = rz / dot(p, q);
+            for (int i = 0; i < m_n; i++)
+            {
+                x[i] += alpha * p[i];
+                r[i] -= alpha * q[i];
+                z[i] = r[i] * invDiag[i];
+            }
+            double rzNext = dot(r, z);
+            double beta = rzNext / rz;
+            rz = rzNext;
+            for (int i = 0; i < m_n; i++)
+            {
+                p[i] = z[i] + beta * p[i];
+            }
+            it++;
+        }
+        return it;
+    }
+
+    public void run()
+    {
+        long start = System.nanoTime();
+        initMatrix(m_mixedGradients);
+
+        double[] invDiag = new double[m_n];
+        for (int i = 0; i < m_n; i++)
+        {
+            for (int k = m_rowStart[i]; k < m_rowStart[i + 1]; k++)
+            {
+                if (m_cols[k] == i && m_vals[k] > 0.0)
+                {
+                    invDiag[i] = 1.0 / m_vals[k];
+                }
+            }
+        }
+
+        m_y = new double[3][m_n];
+        m_iterations = 0;
+        for (int ch = 0; ch < 3; ch++)
+        {
+            m_iterations = Math.max(m_iterations, solveChannel(m_b[ch], m_y[ch], invDiag));
+        }
+
+        if (m_iterations >= MAX_ITERATIONS)
+        {
+            System.out.println("Convergence error");
+        }
+        double time = (System.nanoTime() - start) / 1e9;
+        System.out.println("Solve time: " + time + "s");
+        System.out.println("Pixels blended: " + m_cutPoints.size());
+        System.out.println("Unknowns: " + m_n);
+        System.out.println("Iterations: " + m_iterations);
+    }
+
+    public int getIterations()
+    {
+        return m_iterations;
+    }
+
+    public int getUnknownCount()
+    {
+        return m_n;
+    }
+
+    public void updateTarget()
+    {
+        int[] nodes = new int[4];
+        double[] w = new double[4];
+        int[] rgb = new int[3];
+        for (Point2 p : m_cutPoints)
+        {
+            int px = p.x + m_imageX;
+            int py = p.y + m_imageY;
+            int count = getWeights(px - m_boxX, py - m_boxY, nodes, w, 0);
+            int gp_rgb = m_cutImage.getRGB(p.x, p.y);
+
+            for (int ch = 0; ch < 3; ch++)
+            {
+                double c = 0.0;
+                for (int k = 0; k < count; k++)
+                {
+                    c += w[k] * m_y[ch][nodes[k]];
+                }
+                int value = (int) Math.round(channel(gp_rgb, ch) + c);
+                rgb[ch] = Math.max(Math.min(value, 255), 0);
+            }
+
+            m_targetImage.setRGB(px, py, (rgb[0] << 16) & 0xFF0000 | (rgb[1] << 8) & 0x00FF00 | rgb[2] & 0x0000FF);
+        }
+    }
+}
@@ -0,0 +1,416 @@
+package com.orangeom.poissonimage;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+
+/**
+ * Replays a fixed set of blends headlessly and checks them against golden images and a performance baseline.
+ *
+ * The example blends use the example inputs with fixed borders, since the borders behind the published
+ * outputs were drawn by hand. The synthetic blends cover overlapping regions in one batch and the adaptive
+ * solver. Every case goes through {@link Solver#solveAll} or {@link QuadtreeSolver#blend}, the entry points the
+ * panel and server use. Goldens hold only the target window each blend reads and writes.
+ *
+ * Usage: RegressionHarness [--update] [--dir examples] [--tolerance 2] [--threshold 0.25] [--runs 3]
+ *
+ * --update records new goldens and baseline instead of checking. A case fails when any channel of any pixel
+ * differs from its golden by more than the tolerance, when its iterations grow more than the threshold
+ * fraction above the baseline, or when its best throughput falls more than the threshold fraction below the
+ * median throughput recorded by --update.
+ *
+ * Throughput is recorded relative to a calibration loop, a fixed number of relaxation sweeps over a grid, so a
+ * baseline recorded on one machine can be checked on another. The loop is timed when the harness starts and
+ * again right before each run, so that load on the machine during a run slows both alike.
+ */
+public class RegressionHarness
+{
+    private static final String BASELINE_FILE = "baseline.properties";
+    private static final int CALIBRATION_SIZE = 512;
+    private static final int CALIBRATION_SWEEPS = 20;
+    private static final int WARMUP_RUNS = 3;
+
+    private static class Result
+    {
+        BufferedImage target;
+        Rectangle window;
+        int pixels;
+        int iterations;
+    }
+
+    private static abstract class Case
+    {
+        final String name;
+
+        Case(String _name)
+        {
+            name = _name;
+        }
+
+        abstract Result run() throws IOException;
+    }
+
+    private static ArrayList<Point2> polygon(int... xy)
+    {
+        ArrayList<Point2> points = new ArrayList<>();
+        for (int i = 0; i + 1 < xy.length; i += 2)
+        {
+            points.add(new Point2(xy[i], xy[i + 1]));
+        }
+        return points;
+    }
+
+    private static BufferedImage pattern(int w, int h, double frequency)
+    {
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < h; y++)
+        {
+            for (int x = 0; x < w; x++)
+            {
+                int v = (int) (128 + 60 * Math.sin(x * frequency) + 40 * Math.cos(y * frequency * 0.6));
+                image.setRGB(x, y, v << 16 | (255 - v) << 8 | (x + y) / 4 & 0xFF);
+            }
+        }
+        return image;
+    }
+
+    private static Rectangle union(Rectangle a, Rectangle b)
+    {
+        return a == null ? b : a.union(b);
+    }
+
+    // Border points are given in source coordinates and moved onto the target like the panel does
+    private static CutRegion cut(BufferedImage target, BufferedImage source, ArrayList<Point2> border,
+                                 int imageX, int imageY)
+    {
+        ArrayList<Point2> points = new ArrayList<>();
+        for (Point2 p : border)
+        {
+            points.add(new Point2(p.x + imageX, p.y + imageY));
+        }
+        int[][] mask = new int[target.getWidth()][target.getHeight()];
+        return CutRegion.cut(source, points, mask, imageX, imageY);
+    }
+
+    // All regions go to the target in one batch, through the same entry point the panel and server use
+    private static Result blend(BufferedImage target, BufferedImage source, ArrayList<ArrayList<Point2>> borders,
+                                int[][] offsets, boolean mixedGradients)
+    {
+        Result result = new Result();
+        result.target = ImageRegionIO.copyImage(target);
+        ArrayList<CutRegion> regions = new ArrayList<>();
+        for (int r = 0; r < borders.size(); r++)
+        {
+            CutRegion region = cut(target, source, borders.get(r), offsets[r][0], offsets[r][1]);
+            regions.add(region);
+            result.pixels += region.cutPoints.size();
+            result.window = union(result.window,
+                    ImageRegionIO.getTargetWindow(region.cutPoints, region.imageX, region.imageY));
+        }
+        result.iterations = Solver.solveAll(result.target, regions, mixedGradients);
+        return result;
+    }
+
+    private static ArrayList<Case> getCases(File dir) throws IOException
+    {
+        BufferedImage island = ImageIO.read(new File(dir, "rainbow/Tropical-Island-2.jpg"));
+        BufferedImage rainbow = ImageIO.read(new File(dir, "rainbow/rainbow.jpg"));
+        BufferedImage monaLisa = ImageIO.read(new File(dir, "faceswap/mona-lisa.jpg"));
+        BufferedImage markHamill = ImageIO.read(new File(dir, "faceswap/markhamill.jpg"));
+        BufferedImage syntheticTarget = pattern(640, 480, 0.05);
+        BufferedImage syntheticSource = pattern(400, 400, 0.11);
+
+        ArrayList<Case> cases = new ArrayList<>();
+        cases.add(new Case("rainbow")
+        {
+            Result run()
+            {
+                return blend(island, rainbow,
+                        new ArrayList<>(Collections.singletonList(polygon(300, 150, 760, 170, 740, 360, 320, 340))),
+                        new int[][]{{700, 120}}, true);
+            }
+        });
+        cases.add(new Case("faceswap")
+        {
+            Result run()
+            {
+                return blend(monaLisa, markHamill,
+                        new ArrayList<>(Collections.singletonList(
+                                polygon(85, 95, 210, 90, 225, 250, 150, 320, 75, 255))),
+                        new int[][]{{180, 120}}, false);
+            }
+        });
+        cases.add(new Case("synthetic-multi")
+        {
+            Result run()
+            {
+                // Two overlapping placements and one disjoint one, blended in order
+                return blend(syntheticTarget, syntheticSource,
+                        new ArrayList<>(Arrays.asList(polygon(10, 10, 200, 10, 200, 180, 10, 180),
+                                polygon(10, 10, 200, 10, 100, 220),
+                                polygon(250, 150, 390, 170, 360, 330, 260, 310))),
+                        new int[][]{{40, 40}, {150, 120}, {200, 100}}, true);
+            }
+        });
+        cases.add(new Case("synthetic-adaptive")
+        {
+            Result run()
+            {
+                CutRegion region = cut(syntheticTarget, syntheticSource,
+                        polygon(20, 20, 380, 20, 380, 380, 20, 380), 0, 0);
+
+                Result result = new Result();
+                result.target = ImageRegionIO.copyImage(syntheticTarget);
+                result.iterations = QuadtreeSolver.blend(result.target, region, false);
+                result.pixels = region.cutPoints.size();
+                result.window = ImageRegionIO.getTargetWindow(region.cutPoints, 0, 0);
+                return result;
+            }
+        });
+        return cases;
+    }
+
+    // Grid cells relaxed per second by a loop shaped like a solver sweep, best of the given number of runs
+    private static double calibrate(int runs)
+    {
+        int n = CALIBRATION_SIZE;
+        double[] grid = new double[n * n];
+        double[] rhs = new double[n * n];
+        for (int i = 0; i < rhs.length; i++)
+        {
+            rhs[i] = (i * 31 % 255) - 127;
+        }
+        long bestTime = Long.MAX_VALUE;
+        for (int r = 0; r < runs; r++)
+        {
+            Arrays.fill(grid, 0.0);
+            long start = System.nanoTime();
+            for (int sweep = 0; sweep < CALIBRATION_SWEEPS; sweep++)
+            {
+                for (int y = 1; y < n - 1; y++)
+                {
+                    for (int x = 1; x < n - 1; x++)
+                    {
+                        int i = y * n + x;
+                        double v = (grid[i - 1] + grid[i + 1] + grid[i - n] + grid[i + n] + rhs[i]) * 0.25;
+                        grid[i] += 1.9 * (v - grid[i]);
+                    }
+                }
+            }
+            bestTime = Math.min(bestTime, System.nanoTime() - start);
+        }
+        // Keeps the loop from being optimised away
+        if (Double.isNaN(grid[n * n / 2]))
+        {
+            throw new IllegalStateException("Calibration diverged");
+        }
+        return (double) (n - 2) * (n - 2) * CALIBRATION_SWEEPS / (bestTime / 1e9);
+    }
+
+    private static long getAllocatedBytes()
+    {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean)
+        {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static BufferedImage crop(BufferedImage image, Rectangle window)
+    {
+        Rectangle clipped = window.intersection(new Rectangle(0, 0, image.getWidth(), image.getHeight()));
+        BufferedImage out = new BufferedImage(clipped.width, clipped.height, BufferedImage.TYPE_INT_RGB);
+        out.setRGB(0, 0, clipped.width, clipped.height,
+                image.getRGB(clipped.x, clipped.y, clipped.width, clipped.height, null, 0, clipped.width),
+                0, clipped.width);
+        return out;
+    }
+
+    // Largest channel difference, or -1 if the sizes differ
+    private static int maxDifference(BufferedImage a, BufferedImage b)
+    {
+        if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight())
+        {
+            return -1;
+        }
+        int max = 0;
+        for (int y = 0; y < a.getHeight(); y++)
+        {
+            for (int x = 0; x < a.getWidth(); x++)
+            {
+                int p = a.getRGB(x, y);
+                int q = b.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8)
+                {
+                    max = Math.max(max, Math.abs(((p >> shift) & 0xFF) - ((q >> shift) & 0xFF)));
+                }
+            }
+        }
+        return max;
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        System.setProperty("java.awt.headless", "true");
+
+        boolean update = false;
+        File dir = new File("examples");
+        int tolerance = 2;
+        double threshold = 0.25;
+        int runs = 3;
+        for (int i = 0; i < args.length; i++)
+        {
+            switch (args[i])
+            {
+                case "--update":
+                    update = true;
+                    break;
+                case "--dir":
+                    dir = new File(args[++i]);
+                    break;
+                case "--tolerance":
+                    tolerance = Integer.parseInt(args[++i]);
+                    break;
+                case "--threshold":
+                    threshold = Double.parseDouble(args[++i]);
+                    break;
+                case "--runs":
+                    runs = Math.max(1, Integer.parseInt(args[++i]));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+
+        File goldenDir = new File(dir, "golden");
+        File baselineFile = new File(goldenDir, BASELINE_FILE);
+        Properties baseline = new Properties();
+        if (baselineFile.isFile())
+        {
+            try (InputStream in = new FileInputStream(baselineFile))
+            {
+                baseline.load(in);
+            }
+        }
+        if (update && !goldenDir.isDirectory() && !goldenDir.mkdirs())
+        {
+            throw new IOException("Cannot create " + goldenDir);
+        }
+
+        // Solver progress goes to stdout; keep it out of the report
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(new ByteArrayOutputStream()));
+
+        double calibration = calibrate(5);
+        report.println(String.format("Calibration: %.1f Mcells/s", calibration / 1e6));
+
+        boolean failed = false;
+        report.println(String.format("%-20s %9s %6s %9s %9s %9s %9s %5s  %s",
+                "Case", "Pixels", "Iter", "Time", "Mpx/s", "Relative", "Alloc MB", "Diff", "Status"));
+        for (Case c : getCases(dir))
+        {
+            // The first runs warm up the JIT and the best of the rest is reported, against the best calibration
+            // timed between the runs
+            Result result = null;
+            long[] times = new long[runs];
+            long bestTime = Long.MAX_VALUE;
+            double rate = 0.0;
+            long allocated = -1;
+            for (int r = 0; r < WARMUP_RUNS + runs; r++)
+            {
+                rate = Math.max(rate, calibrate(1));
+                // Starts every run from the same heap, so one run does not pay for collecting another's garbage
+                System.gc();
+                long allocStart = getAllocatedBytes();
+                long start = System.nanoTime();
+                result = c.run();
+                long time = System.nanoTime() - start;
+                if (r < WARMUP_RUNS)
+                {
+                    continue;
+                }
+                times[r - WARMUP_RUNS] = time;
+                if (time < bestTime)
+                {
+                    bestTime = time;
+                    allocated = allocStart < 0 ? -1 : getAllocatedBytes() - allocStart;
+                }
+            }
+            Arrays.sort(times);
+
+            double throughput = result.pixels / (bestTime / 1e9);
+            double relative = throughput / rate;
+            // The baseline is the median run, which the best run of a check only falls below on a regression
+            double medianRelative = result.pixels / (times[runs / 2] / 1e9) / rate;
+            BufferedImage window = crop(result.target, result.window);
+            File goldenFile = new File(goldenDir, c.name + ".png");
+            String status;
+            int diff = 0;
+            if (update)
+            {
+                ImageIO.write(window, "png", goldenFile);
+                baseline.setProperty(c.name + ".throughput", String.valueOf((float) medianRelative));
+                baseline.setProperty(c.name + ".iterations", String.valueOf(result.iterations));
+                status = "UPDATED";
+            }
+            else if (!goldenFile.isFile())
+            {
+                status = "FAIL (no golden, run with --update)";
+                failed = true;
+            }
+            else
+            {
+                diff = maxDifference(window, ImageIO.read(goldenFile));
+                String expected = baseline.getProperty(c.name + ".throughput");
+                double minRelative = expected == null ? 0.0 : Double.parseDouble(expected) * (1.0 - threshold);
+                String expectedIterations = baseline.getProperty(c.name + ".iterations");
+                int maxIterations = expectedIterations == null ? Integer.MAX_VALUE
+                        : (int) (Integer.parseInt(expectedIterations) * (1.0 + threshold));
+                if (diff < 0 || diff > tolerance)
+                {
+                    status = diff < 0 ? "FAIL (window size)" : "FAIL (accuracy)";
+                    failed = true;
+                }
+                else if (result.iterations > maxIterations)
+                {
+                    status = String.format("FAIL (iterations above %d)", maxIterations);
+                    failed = true;
+                }
+                else if (relative < minRelative)
+                {
+                    status = String.format("FAIL (relative throughput below %.4f)", minRelative);
+                    failed = true;
+                }
+                else
+                {
+                    status = "OK";
+                }
+            }
+
+            report.println(String.format("%-20s %9d %6d %8.3fs %9.2f %9.4f %9.1f %5d  %s",
+                    c.name, result.pixels, result.iterations, bestTime / 1e9, throughput / 1e6, relative,
+                    allocated / 1048576.0, diff, status));
+        }
+
+        if (update)
+        {
+            try (OutputStream out = new FileOutputStream(baselineFile))
+            {
+                baseline.store(out, "Throughput in pixels per calibration cell and iteration counts, "
+                        + "written by RegressionHarness --update");
+            }
+        }
+        System.setOut(report);
+        if (failed)
+        {
+            System.exit(1);
+        }
+    }
+}
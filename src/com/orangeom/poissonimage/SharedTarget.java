@@ -0,0 +1,234 @@
+package com.orangeom.poissonimage;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A target image that many blends write into at once. The image is split into tiles, each with a version
+ * that is bumped whenever a blend commits into it, and the tiles share a fixed set of striped locks.
+ *
+ * A blend covers the tiles of its cut and of the one pixel border ring the solve reads. It assembles its
+ * systems under the locks of those tiles, solves without holding them, and commits only if none of the tiles
+ * changed in the meantime, assembling again otherwise. Blends from different threads whose tiles meet are
+ * applied in whichever order they commit. A batch whose order matters goes through {@link #blendAll}, which
+ * leaves the ordering to {@link Solver#solveAll}.
+ */
+public class SharedTarget
+{
+    private static final int TILE_SIZE = 64;
+    private static final int STRIPES = 256;
+    private static final int MAX_OPTIMISTIC_ATTEMPTS = 3;
+
+    private final BufferedImage m_image;
+    private final int m_tilesX;
+    private final int m_tilesY;
+    private final int[] m_versions;
+    private final ReentrantLock[] m_locks;
+
+    public SharedTarget(BufferedImage image)
+    {
+        m_image = image;
+        m_tilesX = (image.getWidth() + TILE_SIZE - 1) / TILE_SIZE;
+        m_tilesY = (image.getHeight() + TILE_SIZE - 1) / TILE_SIZE;
+        m_versions = new int[m_tilesX * m_tilesY];
+        m_locks = new ReentrantLock[STRIPES];
+        for (int i = 0; i < STRIPES; i++)
+        {
+            m_locks[i] = new ReentrantLock();
+        }
+    }
+
+    public BufferedImage getImage()
+    {
+        return m_image;
+    }
+
+    private void markTile(BitSet tiles, int x, int y)
+    {
+        if (x >= 0 && x < m_image.getWidth() && y >= 0 && y < m_image.getHeight())
+        {
+            tiles.set((y / TILE_SIZE) * m_tilesX + x / TILE_SIZE);
+        }
+    }
+
+    /**
+     * Tiles holding the cut points or their four neighbors.
+     */
+    public BitSet getFootprint(CutRegion region)
+    {
+        BitSet tiles = new BitSet(m_tilesX * m_tilesY);
+        for (Point2 p : region.cutPoints)
+        {
+            int x = p.x + region.imageX;
+            int y = p.y + region.imageY;
+            markTile(tiles, x, y);
+            // The ring only crosses into another tile at tile edges
+            if (x % TILE_SIZE == 0)
+            {
+                markTile(tiles, x - 1, y);
+            }
+            if (x % TILE_SIZE == TILE_SIZE - 1)
+            {
+                markTile(tiles, x + 1, y);
+            }
+            if (y % TILE_SIZE == 0)
+            {
+                markTile(tiles, x, y - 1);
+            }
+            if (y % TILE_SIZE == TILE_SIZE - 1)
+            {
+                markTile(tiles, x, y + 1);
+            }
+        }
+        return tiles;
+    }
+
+    private BitSet getStripes(BitSet tiles)
+    {
+        BitSet stripes = new BitSet(STRIPES);
+        for (int t = tiles.nextSetBit(0); t >= 0; t = tiles.nextSetBit(t + 1))
+        {
+            stripes.set(t % STRIPES);
+        }
+        return stripes;
+    }
+
+    // Stripes are always taken in ascending order so that two blends can never deadlock
+    private void lock(BitSet stripes)
+    {
+        for (int s = stripes.nextSetBit(0); s >= 0; s = stripes.nextSetBit(s + 1))
+        {
+            m_locks[s].lock();
+        }
+    }
+
+    private void unlock(BitSet stripes)
+    {
+        for (int s = stripes.nextSetBit(0); s >= 0; s = stripes.nextSetBit(s + 1))
+        {
+            m_locks[s].unlock();
+        }
+    }
+
+    private int[] readVersions(BitSet tiles)
+    {
+        int[] versions = new int[tiles.cardinality()];
+        int k = 0;
+        for (int t = tiles.nextSetBit(0); t >= 0; t = tiles.nextSetBit(t + 1))
+        {
+            versions[k++] = m_versions[t];
+        }
+        return versions;
+    }
+
+    /**
+     * Blends one region into the target. Safe to call from several threads at once, but regions from different
+     * threads that overlap are blended in no particular order; use {@link #blendAll} for those.
+     */
+    public void blend(CutRegion region, boolean mixedGradients)
+    {
+        BitSet tiles = getFootprint(region);
+        BitSet stripes = getStripes(tiles);
+
+        for (int attempt = 0; attempt < MAX_OPTIMISTIC_ATTEMPTS; attempt++)
+        {
+            ArrayList<Solver> solvers;
+            int[] versions;
+            lock(stripes);
+            try
+            {
+                versions = readVersions(tiles);
+                solvers = Solver.assemble(m_image, region, mixedGradients);
+            }
+            finally
+            {
+                unlock(stripes);
+            }
+
+            for (Solver solver : solvers)
+            {
+                solver.solve();
+            }
+
+            lock(stripes);
+            try
+            {
+                if (Arrays.equals(versions, readVersions(tiles)))
+                {
+                    commit(solvers, tiles);
+                    return;
+                }
+            }
+            finally
+            {
+                unlock(stripes);
+            }
+        }
+
+        // After repeated conflicts, hold the tiles for the whole blend
+        lock(stripes);
+        try
+        {
+            ArrayList<Solver> solvers = Solver.assemble(m_image, region, mixedGradients);
+            for (Solver solver : solvers)
+            {
+                solver.solve();
+            }
+            commit(solvers, tiles);
+        }
+        finally
+        {
+            unlock(stripes);
+        }
+    }
+
+    private void commit(ArrayList<Solver> solvers, BitSet tiles)
+    {
+        for (Solver solver : solvers)
+        {
+            if (!solver.isConverged())
+            {
+                System.out.println("Convergence error: " + solver.getResidual()
+                        + " (" + solver.getPixelCount() + " pixels)");
+            }
+            solver.updateTarget();
+        }
+        for (int t = tiles.nextSetBit(0); t >= 0; t = tiles.nextSetBit(t + 1))
+        {
+            m_versions[t]++;
+        }
+    }
+
+    /**
+     * Blends a batch of regions with {@link Solver#solveAll}, so overlapping regions are blended in list order
+     * and the rest in parallel. The batch holds the tiles of all its regions, so blends from other threads wait
+     * for it or assemble again after it.
+     */
+    public void blendAll(List<CutRegion> regions, boolean mixedGradients, int threads)
+    {
+        BitSet tiles = new BitSet(m_tilesX * m_tilesY);
+        for (CutRegion region : regions)
+        {
+            tiles.or(getFootprint(region));
+        }
+        BitSet stripes = getStripes(tiles);
+
+        lock(stripes);
+        try
+        {
+            Solver.solveAll(m_image, regions, mixedGradients, threads);
+            for (int t = tiles.nextSetBit(0); t >= 0; t = tiles.nextSetBit(t + 1))
+            {
+                m_versions[t]++;
+            }
+        }
+        finally
+        {
+            unlock(stripes);
+        }
+    }
+}
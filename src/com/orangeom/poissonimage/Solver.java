@@ -1,7 +1,15 @@
 package com.orangeom.poissonimage;
 
 import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Created by matthew on 6/30/2017.
@@ -12,6 +20,8 @@ public class Solver
     private static final int MASK_BORDER = -2;
     private static final int MASK_OUTSIDE = -3;
     private static final int MAX_ITERATIONS = 100000;
+    // Smaller components solve in well under a second, so snapshots would only add disk writes
+    private static final int CHECKPOINT_MIN_PIXELS = 1 << 16;
 
     private BufferedImage m_targetImage;
     private BufferedImage m_cutImage;
@@ -20,6 +30,8 @@ public class Solver
     private int[][] m_mask;
     private int m_imageX;
     private int m_imageY;
+    // Maps mask indices to indices in m_cutPoints when solving one component of a larger cut
+    private int[] m_localIndex;
 
     private int m_n;
     // Decomposed A: A = D + R
@@ -30,12 +42,25 @@ public class Solver
     private double [][] m_prevX;
     private double[][] m_b;
 
+    private int m_iterations;
+    private double m_error;
+
+    private File m_checkpointFile;
+    private int m_checkpointInterval;
+
     public Solver(BufferedImage targetImage, BufferedImage cutImage, ArrayList<Point2> cutPoints, int[][] mask,
                   int imageX, int imageY, boolean mixedGradients)
+    {
+        this(targetImage, cutImage, cutPoints, null, mask, imageX, imageY, mixedGradients);
+    }
+
+    private Solver(BufferedImage targetImage, BufferedImage cutImage, ArrayList<Point2> cutPoints, int[] localIndex,
+                   int[][] mask, int imageX, int imageY, boolean mixedGradients)
     {
         m_targetImage = targetImage;
         m_cutImage = cutImage;
         m_cutPoints = cutPoints;
+        m_localIndex = localIndex;
         m_mask = mask;
         m_imageX = imageX;
         m_imageY = imageY;
@@ -107,7 +132,7 @@ public class Solver
                 }
                 else
                 {
-                    m_R[i][j] = type;
+                    m_R[i][j] = (m_localIndex != null && type > MASK_INSIDE) ? m_localIndex[type] : type;
                     int gq_rgb = m_cutImage.getRGB(np.x - m_imageX, np.y - m_imageY);
                     int fq_rgb = m_targetImage.getRGB(np.x, np.y);
 
@@ -224,27 +249,173 @@ public class Solver
         }
     }
 
-    public void run()
+    private static long hash(long h, long value)
     {
-        long start = System.nanoTime();
-        int i = 0;
+        // FNV-1a over the bytes of value
+        for (int k = 0; k < 8; k++)
+        {
+            h ^= (value >>> (k * 8)) & 0xFF;
+            h *= 0x100000001B3L;
+        }
+        return h;
+    }
+
+    private long getStructureSignature()
+    {
+        long h = hash(0xCBF29CE484222325L, m_n);
+        for (int i = 0; i < m_n; i++)
+        {
+            Point2 p = m_cutPoints.get(i);
+            h = hash(h, ((long) (p.x + m_imageX) << 32) | ((p.y + m_imageY) & 0xFFFFFFFFL));
+            h = hash(h, m_D[i]);
+            for (int j = 0; j < 4; j++)
+            {
+                h = hash(h, m_R[i][j]);
+            }
+        }
+        return h;
+    }
+
+    private long getRhsSignature()
+    {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < m_n; i++)
+        {
+            for (int k = 0; k < 3; k++)
+            {
+                h = hash(h, Double.doubleToLongBits(m_b[i][k]));
+            }
+        }
+        return h;
+    }
+
+    /**
+     * Snapshots the iterate to the file every interval iterations and when the solve ends. If the file already
+     * holds a snapshot of the same problem, the solve resumes from it. If it holds one of the same region with
+     * other colors, such as a re-blend onto a changed target, the solve starts from that solution instead.
+     */
+    public void setCheckpoint(File file, int interval)
+    {
+        m_checkpointFile = file;
+        m_checkpointInterval = Math.max(1, interval);
+    }
+
+    private SolverCheckpoint openCheckpoint(long structure, long rhs)
+    {
+        try
+        {
+            SolverCheckpoint checkpoint = SolverCheckpoint.open(m_checkpointFile, m_n);
+            if (checkpoint.hasSnapshot() && checkpoint.getStructureSignature() == structure)
+            {
+                checkpoint.read(m_x);
+                if (checkpoint.getRhsSignature() == rhs)
+                {
+                    m_iterations = checkpoint.getIterations();
+                    System.out.println("Resuming from iteration " + m_iterations);
+                }
+                else
+                {
+                    System.out.println("Warm start from " + m_checkpointFile.getName());
+                }
+            }
+            return checkpoint;
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    void solve()
+    {
+        m_iterations = 0;
+        long structure = 0;
+        long rhs = 0;
+        SolverCheckpoint checkpoint = null;
+        if (m_checkpointFile != null)
+        {
+            structure = getStructureSignature();
+            rhs = getRhsSignature();
+            checkpoint = openCheckpoint(structure, rhs);
+        }
+
+        int i = m_iterations;
         double error = 0.0;
         do
         {
             error = getError();
             i++;
             iterateRelax();
+            if (checkpoint != null && i % m_checkpointInterval == 0)
+            {
+                checkpoint.write(m_x, structure, rhs, i, error);
+            }
         }
         while (error > 1.0 && i < MAX_ITERATIONS);
 
-        if (i >= MAX_ITERATIONS)
+        m_iterations = i;
+        m_error = error;
+        if (checkpoint != null)
         {
-            System.out.println("Convergence error: " + error);
+            checkpoint.write(m_x, structure, rhs, i, error);
+        }
+    }
+
+    public void run()
+    {
+        long start = System.nanoTime();
+        solve();
+
+        if (!isConverged())
+        {
+            System.out.println("Convergence error: " + m_error);
         }
         double time = (System.nanoTime() - start) / 1e9;
         System.out.println("Solve time: " + time + "s");
         System.out.println("Pixels blended: " + m_n);
-        System.out.println("Iterations: " + i);
+        System.out.println("Iterations: " + m_iterations);
+    }
+
+    public int getIterations()
+    {
+        return m_iterations;
+    }
+
+    public double getResidual()
+    {
+        return m_error;
+    }
+
+    public boolean isConverged()
+    {
+        return m_iterations < MAX_ITERATIONS;
+    }
+
+    public int getPixelCount()
+    {
+        return m_n;
+    }
+
+    // Assembled system, shared with solvers that distribute the iteration
+    int[] getDiagonal()
+    {
+        return m_D;
+    }
+
+    int[][] getNeighbors()
+    {
+        return m_R;
+    }
+
+    double[][] getRhs()
+    {
+        return m_b;
+    }
+
+    double[][] getSolution()
+    {
+        return m_x;
     }
 
     public void updateTarget()
@@ -266,4 +437,245 @@ public class Solver
         }
     }
 
+    /**
+     * Splits the inside points of a cut into 4-connected components. Each returned list holds the points of
+     * one component, and localIndex (sized to cutPoints) receives each point's index within its component.
+     */
+    public static ArrayList<ArrayList<Point2>> splitComponents(ArrayList<Point2> cutPoints, int[][] mask,
+                                                               int imageX, int imageY, int[] localIndex)
+    {
+        Point2[] neighbors = {
+                new Point2(-1, 0), new Point2(1, 0),
+                new Point2(0, -1), new Point2(0, 1)};
+
+        ArrayList<ArrayList<Point2>> components = new ArrayList<>();
+        boolean[] visited = new boolean[cutPoints.size()];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int seed = 0; seed < cutPoints.size(); seed++)
+        {
+            if (visited[seed])
+            {
+                continue;
+            }
+
+            ArrayList<Point2> component = new ArrayList<>();
+            visited[seed] = true;
+            queue.add(seed);
+            while (!queue.isEmpty())
+            {
+                int idx = queue.poll();
+                Point2 p = cutPoints.get(idx);
+                localIndex[idx] = component.size();
+                component.add(p);
+
+                for (Point2 d : neighbors)
+                {
+                    int nx = p.x + d.x + imageX;
+                    int ny = p.y + d.y + imageY;
+                    if (nx < 1 || nx >= mask.length - 1 || ny < 1 || ny >= mask[0].length - 1)
+                    {
+                        continue;
+                    }
+
+                    int type = mask[nx][ny];
+                    if (type > MASK_INSIDE && !visited[type])
+                    {
+                        visited[type] = true;
+                        queue.add(type);
+                    }
+                }
+            }
+            components.add(component);
+        }
+        return components;
+    }
+
+    /**
+     * Builds one system per connected component of the region from the current target.
+     */
+    static ArrayList<Solver> assemble(BufferedImage targetImage, CutRegion region, boolean mixedGradients)
+    {
+        ArrayList<Solver> solvers = new ArrayList<>();
+        int[] localIndex = new int[region.cutPoints.size()];
+        ArrayList<ArrayList<Point2>> components = splitComponents(region.cutPoints, region.mask,
+                region.imageX, region.imageY, localIndex);
+        for (ArrayList<Point2> component : components)
+        {
+            solvers.add(new Solver(targetImage, region.cutImage, component, localIndex, region.mask,
+                    region.imageX, region.imageY, mixedGradients));
+        }
+        return solvers;
+    }
+
+    private static void solveParallel(ArrayList<Solver> solvers, int threads)
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            ArrayList<Future<?>> futures = new ArrayList<>();
+            for (Solver solver : solvers)
+            {
+                futures.add(executor.submit(solver::solve));
+            }
+            for (Future<?> future : futures)
+            {
+                future.get();
+            }
+        }
+        catch (Exception e)
+        {
+            throw new RuntimeException("Blend failed", e);
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Target pixels a blend of the region reads or writes: its inside points and their four neighbors.
+     */
+    private static BitSet getFootprint(CutRegion region, int width, int height)
+    {
+        BitSet footprint = new BitSet(width * height);
+        for (Point2 p : region.cutPoints)
+        {
+            int x = p.x + region.imageX;
+            int y = p.y + region.imageY;
+            footprint.set(y * width + x);
+            if (x > 0)
+            {
+                footprint.set(y * width + x - 1);
+            }
+            if (x < width - 1)
+            {
+                footprint.set(y * width + x + 1);
+            }
+            if (y > 0)
+            {
+                footprint.set((y - 1) * width + x);
+            }
+            if (y < height - 1)
+            {
+                footprint.set((y + 1) * width + x);
+            }
+        }
+        return footprint;
+    }
+
+    /**
+     * Blends several cut regions into one target. A region whose footprint meets that of an earlier region
+     * is blended after it, against the target that blend left, so the result is the same as blending the
+     * regions one by one in list order. Regions are grouped into the fewest such steps; within a step every
+     * connected component of every region is solved as its own system in parallel. Returns the most
+     * iterations any component took.
+     */
+    public static int solveAll(BufferedImage targetImage, List<CutRegion> regions, boolean mixedGradients)
+    {
+        return solveAll(targetImage, regions, mixedGradients, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static int solveAll(BufferedImage targetImage, List<CutRegion> regions, boolean mixedGradients,
+                               int maxThreads)
+    {
+        return solveAll(targetImage, regions, mixedGradients, maxThreads, null, 0);
+    }
+
+    /**
+     * Like {@link #solveAll(BufferedImage, List, boolean, int)}, and checkpoints every component of at least
+     * CHECKPOINT_MIN_PIXELS pixels into the directory, see {@link #setCheckpoint}. Files are named by the
+     * structure signature of their component, so a rerun of the same blend finds its own snapshots.
+     */
+    public static int solveAll(BufferedImage targetImage, List<CutRegion> regions, boolean mixedGradients,
+                               int maxThreads, File checkpointDir, int checkpointInterval)
+    {
+        long start = System.nanoTime();
+        int n = regions.size();
+        int width = targetImage.getWidth();
+        int height = targetImage.getHeight();
+
+        // Each region goes one step after the last earlier region it overlaps
+        int[] step = new int[n];
+        int steps = n > 0 ? 1 : 0;
+        if (n > 1)
+        {
+            BitSet[] footprints = new BitSet[n];
+            for (int i = 0; i < n; i++)
+            {
+                footprints[i] = getFootprint(regions.get(i), width, height);
+                for (int j = 0; j < i; j++)
+                {
+                    if (step[j] >= step[i] && footprints[j].intersects(footprints[i]))
+                    {
+                        step[i] = step[j] + 1;
+                    }
+                }
+                steps = Math.max(steps, step[i] + 1);
+            }
+        }
+
+        ArrayList<Solver> solvers = new ArrayList<>();
+        for (int s = 0; s < steps; s++)
+        {
+            ArrayList<Solver> stepSolvers = new ArrayList<>();
+            for (int i = 0; i < n; i++)
+            {
+                if (step[i] == s)
+                {
+                    stepSolvers.addAll(assemble(targetImage, regions.get(i), mixedGradients));
+                }
+            }
+            if (checkpointDir != null && (checkpointDir.isDirectory() || checkpointDir.mkdirs()))
+            {
+                for (Solver solver : stepSolvers)
+                {
+                    if (solver.getPixelCount() >= CHECKPOINT_MIN_PIXELS)
+                    {
+                        String name = String.format("%016x.ckpt", solver.getStructureSignature());
+                        solver.setCheckpoint(new File(checkpointDir, name), checkpointInterval);
+                    }
+                }
+            }
+
+            int threads = Math.max(1, Math.min(stepSolvers.size(), maxThreads));
+            if (threads == 1)
+            {
+                for (Solver solver : stepSolvers)
+                {
+                    solver.solve();
+                }
+            }
+            else
+            {
+                solveParallel(stepSolvers, threads);
+            }
+
+            for (Solver solver : stepSolvers)
+            {
+                solver.updateTarget();
+            }
+            solvers.addAll(stepSolvers);
+        }
+
+        int pixels = 0;
+        int maxIterations = 0;
+        for (Solver solver : solvers)
+        {
+            if (!solver.isConverged())
+            {
+                System.out.println("Convergence error: " + solver.getResidual()
+                        + " (" + solver.getPixelCount() + " pixels)");
+            }
+            pixels += solver.getPixelCount();
+            maxIterations = Math.max(maxIterations, solver.getIterations());
+        }
+
+        double time = (System.nanoTime() - start) / 1e9;
+        System.out.println("Solve time: " + time + "s");
+        System.out.println("Pixels blended: " + pixels);
+        System.out.println("Components: " + solvers.size());
+        System.out.println("Sequential steps: " + steps);
+        System.out.println("Iterations: " + maxIterations);
+        return maxIterations;
+    }
 }
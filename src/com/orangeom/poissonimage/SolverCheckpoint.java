@@ -0,0 +1,193 @@
+package com.orangeom.poissonimage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory-mapped snapshots of a solve: the iterate, the iteration count and residual, and two signatures of
+ * the problem. The structure signature covers the pixels and their connections, so a snapshot can warm start
+ * a re-blend of the same region. The right hand side signature also covers the colors, and a run resumes
+ * from a snapshot only when both match.
+ *
+ * The file holds two slots that are written in turn, each with a sequence number, so the previous snapshot
+ * survives a write that is cut short. The newest complete slot is the one read back. The file is mapped once
+ * for reading and writing, and only resized when the unknown count changes.
+ *
+ * Layout, little endian: magic, version, n, then two slots of: sequence, complete flag, structure signature,
+ * right hand side signature, iterations, residual, n * 3 doubles of the iterate.
+ */
+public class SolverCheckpoint
+{
+    private static final long MAGIC = 0x504F4953534F4E31L;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_HEADER_SIZE = 48;
+
+    private static final int N_OFFSET = 12;
+    private static final int SEQUENCE_OFFSET = 0;
+    private static final int COMPLETE_OFFSET = 8;
+    private static final int STRUCTURE_OFFSET = 16;
+    private static final int RHS_OFFSET = 24;
+    private static final int ITERATIONS_OFFSET = 32;
+    private static final int RESIDUAL_OFFSET = 40;
+
+    private final MappedByteBuffer m_buffer;
+    private final DoubleBuffer[] m_values = new DoubleBuffer[2];
+    private final int m_n;
+    private final long m_slotSize;
+    // Slot holding the newest complete snapshot, or -1 if there is none
+    private int m_latest;
+
+    private SolverCheckpoint(MappedByteBuffer buffer, int n)
+    {
+        m_buffer = buffer;
+        m_buffer.order(ByteOrder.LITTLE_ENDIAN);
+        m_n = n;
+        m_slotSize = getSlotSize(n);
+        for (int slot = 0; slot < 2; slot++)
+        {
+            m_buffer.position(slotOffset(slot) + SLOT_HEADER_SIZE);
+            m_values[slot] = m_buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+        }
+        m_buffer.position(0);
+
+        if (m_buffer.getLong(0) != MAGIC || m_buffer.getInt(8) != VERSION || m_buffer.getInt(N_OFFSET) != n)
+        {
+            m_buffer.putLong(0, MAGIC);
+            m_buffer.putInt(8, VERSION);
+            m_buffer.putInt(N_OFFSET, n);
+            m_buffer.putInt(slotOffset(0) + COMPLETE_OFFSET, 0);
+            m_buffer.putInt(slotOffset(1) + COMPLETE_OFFSET, 0);
+            m_buffer.force();
+        }
+        m_latest = -1;
+        for (int slot = 0; slot < 2; slot++)
+        {
+            if (m_buffer.getInt(slotOffset(slot) + COMPLETE_OFFSET) == 1
+                    && (m_latest < 0 || getSequence(slot) > getSequence(m_latest)))
+            {
+                m_latest = slot;
+            }
+        }
+    }
+
+    private static long getSlotSize(int n)
+    {
+        return SLOT_HEADER_SIZE + 24L * n;
+    }
+
+    public static long getFileSize(int n)
+    {
+        return HEADER_SIZE + 2 * getSlotSize(n);
+    }
+
+    private int slotOffset(int slot)
+    {
+        return (int) (HEADER_SIZE + slot * m_slotSize);
+    }
+
+    private long getSequence(int slot)
+    {
+        return m_buffer.getLong(slotOffset(slot) + SEQUENCE_OFFSET);
+    }
+
+    /**
+     * Maps a file for snapshots of n unknowns. An existing file of the right size keeps its snapshots; any
+     * other file is resized and starts empty.
+     */
+    public static SolverCheckpoint open(File file, int n) throws IOException
+    {
+        long size = getFileSize(n);
+        if (size > Integer.MAX_VALUE)
+        {
+            throw new IOException("Too many unknowns for one checkpoint: " + n);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel())
+        {
+            // Resizing fails on some platforms while an earlier mapping of the file is still alive
+            if (raf.length() != size)
+            {
+                raf.setLength(size);
+            }
+            return new SolverCheckpoint(channel.map(FileChannel.MapMode.READ_WRITE, 0, size), n);
+        }
+    }
+
+    public boolean hasSnapshot()
+    {
+        return m_latest >= 0;
+    }
+
+    /**
+     * Writes a snapshot into the older slot, leaving the newest one intact until this one is complete.
+     */
+    public void write(double[][] x, long structureSignature, long rhsSignature, int iterations, double residual)
+    {
+        int slot = m_latest == 0 ? 1 : 0;
+        int offset = slotOffset(slot);
+        long sequence = m_latest < 0 ? 1 : getSequence(m_latest) + 1;
+
+        m_buffer.putInt(offset + COMPLETE_OFFSET, 0);
+        m_buffer.force();
+        m_buffer.putLong(offset + STRUCTURE_OFFSET, structureSignature);
+        m_buffer.putLong(offset + RHS_OFFSET, rhsSignature);
+        m_buffer.putInt(offset + ITERATIONS_OFFSET, iterations);
+        m_buffer.putDouble(offset + RESIDUAL_OFFSET, residual);
+        DoubleBuffer values = m_values[slot];
+        for (int i = 0; i < m_n; i++)
+        {
+            values.put(i * 3, x[i][0]);
+            values.put(i * 3 + 1, x[i][1]);
+            values.put(i * 3 + 2, x[i][2]);
+        }
+        m_buffer.force();
+        m_buffer.putLong(offset + SEQUENCE_OFFSET, sequence);
+        m_buffer.putInt(offset + COMPLETE_OFFSET, 1);
+        m_buffer.force();
+        m_latest = slot;
+    }
+
+    /**
+     * Reads the newest snapshot into x; only valid if {@link #hasSnapshot()}.
+     */
+    public void read(double[][] x)
+    {
+        DoubleBuffer values = m_values[m_latest];
+        for (int i = 0; i < m_n; i++)
+        {
+            x[i][0] = values.get(i * 3);
+            x[i][1] = values.get(i * 3 + 1);
+            x[i][2] = values.get(i * 3 + 2);
+        }
+    }
+
+    public int getN()
+    {
+        return m_n;
+    }
+
+    public long getStructureSignature()
+    {
+        return m_buffer.getLong(slotOffset(m_latest) + STRUCTURE_OFFSET);
+    }
+
+    public long getRhsSignature()
+    {
+        return m_buffer.getLong(slotOffset(m_latest) + RHS_OFFSET);
+    }
+
+    public int getIterations()
+    {
+        return m_buffer.getInt(slotOffset(m_latest) + ITERATIONS_OFFSET);
+    }
+
+    public double getResidual()
+    {
+        return m_buffer.getDouble(slotOffset(m_latest) + RESIDUAL_OFFSET);
+    }
+}
@@ -0,0 +1,234 @@
+package com.orangeom.poissonimage;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Multi-level undo and redo for blends into a target image. Each edit keeps only the tiles its cut writes,
+ * before and after the blend, deflated into direct buffers outside the Java heap. The oldest edits are
+ * dropped once the compressed tiles exceed the memory budget.
+ */
+public class UndoHistory
+{
+    private static final int TILE_SIZE = 64;
+
+    private static class Tile
+    {
+        int x;
+        int y;
+        int w;
+        int h;
+        ByteBuffer before;
+        ByteBuffer after;
+    }
+
+    public static class Edit
+    {
+        private BufferedImage m_image;
+        private ArrayList<Tile> m_tiles = new ArrayList<>();
+        private long m_bytes = 0;
+    }
+
+    private final long m_maxBytes;
+    private long m_bytes = 0;
+    private final ArrayDeque<Edit> m_undo = new ArrayDeque<>();
+    private final ArrayDeque<Edit> m_redo = new ArrayDeque<>();
+
+    private final Deflater m_deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater m_inflater = new Inflater();
+    private byte[] m_raw = new byte[TILE_SIZE * TILE_SIZE * 4];
+    private byte[] m_compressed = new byte[TILE_SIZE * TILE_SIZE * 4 + 64];
+    private int[] m_pixels = new int[TILE_SIZE * TILE_SIZE];
+
+    public UndoHistory(long maxBytes)
+    {
+        m_maxBytes = maxBytes;
+    }
+
+    private ByteBuffer saveTile(BufferedImage image, Tile tile)
+    {
+        image.getRGB(tile.x, tile.y, tile.w, tile.h, m_pixels, 0, tile.w);
+        int n = tile.w * tile.h;
+        for (int i = 0; i < n; i++)
+        {
+            int p = m_pixels[i];
+            m_raw[i * 4] = (byte) (p >> 24);
+            m_raw[i * 4 + 1] = (byte) (p >> 16);
+            m_raw[i * 4 + 2] = (byte) (p >> 8);
+            m_raw[i * 4 + 3] = (byte) p;
+        }
+
+        m_deflater.reset();
+        m_deflater.setInput(m_raw, 0, n * 4);
+        m_deflater.finish();
+        int length = 0;
+        while (!m_deflater.finished())
+        {
+            length += m_deflater.deflate(m_compressed, length, m_compressed.length - length);
+            if (length == m_compressed.length)
+            {
+                m_compressed = Arrays.copyOf(m_compressed, m_compressed.length * 2);
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+        buffer.put(m_compressed, 0, length);
+        buffer.flip();
+        return buffer;
+    }
+
+    private void restoreTile(BufferedImage image, Tile tile, ByteBuffer buffer)
+    {
+        int length = buffer.remaining();
+        if (m_compressed.length < length)
+        {
+            m_compressed = new byte[length];
+        }
+        buffer.duplicate().get(m_compressed, 0, length);
+
+        int n = tile.w * tile.h;
+        m_inflater.reset();
+        m_inflater.setInput(m_compressed, 0, length);
+        try
+        {
+            int read = 0;
+            while (read < n * 4 && !m_inflater.finished())
+            {
+                read += m_inflater.inflate(m_raw, read, n * 4 - read);
+            }
+        }
+        catch (DataFormatException e)
+        {
+            throw new IllegalStateException("Corrupt undo tile", e);
+        }
+
+        for (int i = 0; i < n; i++)
+        {
+            m_pixels[i] = (m_raw[i * 4] & 0xFF) << 24 | (m_raw[i * 4 + 1] & 0xFF) << 16
+                    | (m_raw[i * 4 + 2] & 0xFF) << 8 | m_raw[i * 4 + 3] & 0xFF;
+        }
+        image.setRGB(tile.x, tile.y, tile.w, tile.h, m_pixels, 0, tile.w);
+    }
+
+    /**
+     * Saves the tiles the region will write to. Call before updating the target and pass the result to
+     * {@link #commit(Edit)} afterwards.
+     */
+    public synchronized Edit begin(BufferedImage image, CutRegion region)
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+
+        BitSet touched = new BitSet(tilesX * tilesY);
+        for (Point2 p : region.cutPoints)
+        {
+            int x = p.x + region.imageX;
+            int y = p.y + region.imageY;
+            if (x >= 0 && x < width && y >= 0 && y < height)
+            {
+                touched.set((y / TILE_SIZE) * tilesX + x / TILE_SIZE);
+            }
+        }
+
+        Edit edit = new Edit();
+        edit.m_image = image;
+        for (int i = touched.nextSetBit(0); i >= 0; i = touched.nextSetBit(i + 1))
+        {
+            Tile tile = new Tile();
+            tile.x = (i % tilesX) * TILE_SIZE;
+            tile.y = (i / tilesX) * TILE_SIZE;
+            tile.w = Math.min(TILE_SIZE, width - tile.x);
+            tile.h = Math.min(TILE_SIZE, height - tile.y);
+            tile.before = saveTile(image, tile);
+            edit.m_bytes += tile.before.capacity();
+            edit.m_tiles.add(tile);
+        }
+        return edit;
+    }
+
+    /**
+     * Saves the blended tiles and pushes the edit, discarding anything that could be redone.
+     */
+    public synchronized void commit(Edit edit)
+    {
+        for (Tile tile : edit.m_tiles)
+        {
+            tile.after = saveTile(edit.m_image, tile);
+            edit.m_bytes += tile.after.capacity();
+        }
+
+        for (Edit e : m_redo)
+        {
+            m_bytes -= e.m_bytes;
+        }
+        m_redo.clear();
+
+        m_undo.push(edit);
+        m_bytes += edit.m_bytes;
+        while (m_bytes > m_maxBytes && m_undo.size() > 1)
+        {
+            m_bytes -= m_undo.removeLast().m_bytes;
+        }
+    }
+
+    public synchronized boolean undo()
+    {
+        Edit edit = m_undo.poll();
+        if (edit == null)
+        {
+            return false;
+        }
+        for (Tile tile : edit.m_tiles)
+        {
+            restoreTile(edit.m_image, tile, tile.before);
+        }
+        m_redo.push(edit);
+        return true;
+    }
+
+    public synchronized boolean redo()
+    {
+        Edit edit = m_redo.poll();
+        if (edit == null)
+        {
+            return false;
+        }
+        for (Tile tile : edit.m_tiles)
+        {
+            restoreTile(edit.m_image, tile, tile.after);
+        }
+        m_undo.push(edit);
+        return true;
+    }
+
+    public synchronized void clear()
+    {
+        m_undo.clear();
+        m_redo.clear();
+        m_bytes = 0;
+    }
+
+    public synchronized int getUndoCount()
+    {
+        return m_undo.size();
+    }
+
+    public synchronized int getRedoCount()
+    {
+        return m_redo.size();
+    }
+
+    public synchronized long getBytes()
+    {
+        return m_bytes;
+    }
+}